@@ -0,0 +1,475 @@
+package org.kewt.databaseprovider;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.jboss.logging.Logger;
+import org.kewt.databaseprovider.cache.DatabaseUserCache;
+import org.kewt.databaseprovider.cache.SingleFlight;
+import org.kewt.databaseprovider.cache.UserBloomFilter;
+import org.kewt.databaseprovider.cache.UserCountCache;
+import org.kewt.databaseprovider.crypto.HashProfile;
+import org.kewt.databaseprovider.crypto.PasswordHashFunction;
+import org.kewt.databaseprovider.crypto.PasswordVerifier;
+import org.kewt.databaseprovider.crypto.VerifiedCredentialCache;
+import org.kewt.databaseprovider.database.DatabaseConnection;
+import org.kewt.databaseprovider.database.DatabaseConnectionPool;
+import org.kewt.databaseprovider.model.DatabaseUser;
+import org.kewt.databaseprovider.repository.DatabaseUserQueries;
+import org.kewt.databaseprovider.repository.DatabaseUserRepository;
+import org.kewt.databaseprovider.repository.SearchAnchors;
+import org.keycloak.component.ComponentModel;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * Resources shared by every session of a federation component on this node.
+ * Instances are owned by {@link DBFederationProviderFactory} and rebuilt when the
+ * component configuration changes.
+ */
+public class DBFederationComponent implements Closeable {
+
+	protected static final Logger LOGGER = Logger.getLogger(DBFederationComponent.class);
+
+	protected static final long SEARCH_ANCHOR_TTL = 300000;
+
+	protected static final long FILTER_FIRST_REBUILD_DELAY = 60;
+
+	private static final ConcurrentMap<ObjectName, Object> MBEAN_OWNERS = new ConcurrentHashMap<>();
+
+	protected final String id;
+
+	protected final ComponentModel model;
+
+	protected final List<String> fingerprint;
+
+	protected final DatabaseConnectionPool connectionPool;
+
+	protected final DatabaseUserQueries userQueries;
+
+	protected final DatabaseUserCache userCache;
+
+	protected final ObjectName userCacheName;
+
+	protected final SingleFlight<String> userLookups;
+
+	protected final ObjectName userLookupsName;
+
+	protected final UserBloomFilter userFilter;
+
+	protected final ObjectName userFilterName;
+
+	protected final ScheduledExecutorService userFilterRebuilder;
+
+	protected final long userFilterRebuildInterval;
+
+	protected final PasswordHashFunction passwordHashFunction;
+
+	protected final PasswordEncoder passwordEncoder;
+
+	protected final HashProfile passwordProfile;
+
+	protected final HashProfile rehashProfile;
+
+	protected final ConcurrentMap<HashProfile, PasswordEncoder> profileEncoders;
+
+	protected final PasswordVerifier passwordVerifier;
+
+	protected final ObjectName passwordVerifierName;
+
+	protected final VerifiedCredentialCache verifiedCredentialCache;
+
+	protected final SearchAnchors searchAnchors;
+
+	protected final UserCountCache userCounts;
+
+	protected final boolean approximateCount;
+
+	protected final int syncFetchSize;
+
+	protected final int syncBatchSize;
+
+	protected final String syncDeletionMode;
+
+	protected final int syncLookback;
+
+	private int references;
+
+	private boolean retired;
+
+	private boolean closed;
+
+	/**
+	 * Builds the resources of a component. The configuration is fully parsed before any
+	 * thread, pool or MBean is created, and those created before a failure are released.
+	 */
+	public DBFederationComponent(ComponentModel model, List<String> fingerprint) {
+		this.id = model.getId();
+		this.model = model;
+		this.fingerprint = fingerprint;
+		int poolMaxSize = getInteger(model, DBFederationConstants.CONFIG_POOL_MAX_SIZE, 10);
+		Duration poolIdleTimeout = Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_POOL_IDLE_TIMEOUT, 600));
+		Duration poolConnectionTimeout = Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_POOL_CONNECTION_TIMEOUT, 30));
+		Duration poolLeakDetectionThreshold = Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_POOL_LEAK_DETECTION_THRESHOLD, 0));
+		int verifyConcurrency = getInteger(model, DBFederationConstants.CONFIG_VERIFY_CONCURRENCY, Runtime.getRuntime().availableProcessors());
+		int verifyQueueSize = getInteger(model, DBFederationConstants.CONFIG_VERIFY_QUEUE_SIZE, 100);
+		Duration verifyWaitTimeout = Duration.ofMillis(getInteger(model, DBFederationConstants.CONFIG_VERIFY_WAIT_TIMEOUT, 5000));
+		long filterRebuildInterval = Math.max(60, getInteger(model, DBFederationConstants.CONFIG_BLOOM_FILTER_REBUILD_INTERVAL, 3600));
+		this.userQueries = new DatabaseUserQueries(model);
+		this.userCache = new DatabaseUserCache(
+			getInteger(model, DBFederationConstants.CONFIG_CACHE_MAX_SIZE, 10000),
+			Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_CACHE_TTL, 0)));
+		this.userLookups = new SingleFlight<>();
+		this.userFilter = Boolean.parseBoolean(model.get(DBFederationConstants.CONFIG_BLOOM_FILTER)) ? new UserBloomFilter() : null;
+		this.passwordHashFunction = PasswordHashFunction.getById(ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_PASSWORD_HASH_FUNCTION), PasswordHashFunction.BCRYPT.getId()));
+		this.passwordEncoder = passwordHashFunction.getPasswordEncoder(model);
+		this.passwordProfile = HashProfile.configured(passwordHashFunction, model);
+		this.rehashProfile = getRehashProfile(model);
+		this.profileEncoders = new ConcurrentHashMap<>();
+		this.profileEncoders.put(passwordProfile, passwordEncoder);
+		this.verifiedCredentialCache = new VerifiedCredentialCache(
+			getInteger(model, DBFederationConstants.CONFIG_CREDENTIAL_CACHE_MAX_SIZE, 10000),
+			Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_CREDENTIAL_CACHE_TTL, 0)));
+		this.searchAnchors = new SearchAnchors(SEARCH_ANCHOR_TTL);
+		this.userCounts = new UserCountCache(Duration.ofSeconds(getInteger(model, DBFederationConstants.CONFIG_COUNT_CACHE_TTL, 60)));
+		this.approximateCount = DBFederationConstants.COUNT_APPROXIMATE.equals(model.get(DBFederationConstants.CONFIG_COUNT_MODE));
+		this.syncFetchSize = getInteger(model, DBFederationConstants.CONFIG_SYNC_FETCH_SIZE, 1000);
+		this.syncBatchSize = getInteger(model, DBFederationConstants.CONFIG_SYNC_BATCH_SIZE, 500);
+		this.syncLookback = getInteger(model, DBFederationConstants.CONFIG_SYNC_LOOKBACK, 60);
+		this.syncDeletionMode = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_SYNC_DELETION_MODE), DBFederationConstants.SYNC_DELETION_NONE);
+
+		DatabaseConnectionPool pool = null;
+		PasswordVerifier verifier = null;
+		ScheduledExecutorService rebuilder = null;
+		try {
+			pool = new DatabaseConnectionPool(
+				model.getId(),
+				model.get(DBFederationConstants.CONFIG_JDBC_URL),
+				model.get(DBFederationConstants.CONFIG_JDBC_USERNAME),
+				model.get(DBFederationConstants.CONFIG_JDBC_PASSWORD),
+				poolMaxSize, poolIdleTimeout, poolConnectionTimeout, poolLeakDetectionThreshold);
+			verifier = new PasswordVerifier(model.getId(), verifyConcurrency, verifyQueueSize, verifyWaitTimeout);
+			if (userFilter != null) {
+				rebuilder = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+					Thread thread = new Thread(runnable, "db-federation-filter-" + id);
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+		} catch (RuntimeException e) {
+			if (verifier != null) {
+				verifier.close();
+			}
+			if (pool != null) {
+				pool.close();
+			}
+			throw e;
+		}
+		this.connectionPool = pool;
+		this.passwordVerifier = verifier;
+		this.userFilterRebuilder = rebuilder;
+		this.userFilterRebuildInterval = filterRebuildInterval;
+		this.userCacheName = registerMBean(userCache, "DatabaseUserCache");
+		this.userLookupsName = registerMBean(userLookups, "UserLookups");
+		this.userFilterName = userFilter != null ? registerMBean(userFilter, "UserBloomFilter") : null;
+		this.passwordVerifierName = registerMBean(passwordVerifier, "PasswordVerifier");
+		if (userFilterRebuilder != null) {
+			// the filter answers "might exist" until built, so a component rebuilt again right
+			// after a configuration change does not pay for a scan of the users table
+			userFilterRebuilder.scheduleWithFixedDelay(this::rebuildUserFilter, Math.min(FILTER_FIRST_REBUILD_DELAY, filterRebuildInterval), filterRebuildInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public List<String> getFingerprint() {
+		return fingerprint;
+	}
+
+	public DatabaseConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	public DatabaseUserQueries getUserQueries() {
+		return userQueries;
+	}
+
+	public DatabaseUserCache getUserCache() {
+		return userCache;
+	}
+
+	public PasswordHashFunction getPasswordHashFunction() {
+		return passwordHashFunction;
+	}
+
+	/**
+	 * Returns the thread safe encoder of the configured password hash function, built once
+	 * per component configuration.
+	 */
+	public PasswordEncoder getPasswordEncoder() {
+		return passwordEncoder;
+	}
+
+	/**
+	 * Returns the profile of stored hashes without a recognized prefix.
+	 */
+	public HashProfile getPasswordProfile() {
+		return passwordProfile;
+	}
+
+	/**
+	 * Returns the profile passwords are rehashed to after a successful login, null when disabled.
+	 */
+	public HashProfile getRehashProfile() {
+		return rehashProfile;
+	}
+
+	/**
+	 * Returns the encoder of the given profile, built once per profile.
+	 */
+	public PasswordEncoder getPasswordEncoder(HashProfile profile) {
+		return profileEncoders.computeIfAbsent(profile, (HashProfile key) -> {
+			return key.getFunction().getPasswordEncoder(model, key.getCost());
+		});
+	}
+
+	public PasswordVerifier getPasswordVerifier() {
+		return passwordVerifier;
+	}
+
+	/**
+	 * Returns the cache of successful password verifications, null when it is disabled.
+	 */
+	public VerifiedCredentialCache getVerifiedCredentialCache() {
+		return verifiedCredentialCache.isEnabled() ? verifiedCredentialCache : null;
+	}
+
+	/**
+	 * Returns the filter of known usernames and emails, null when it is disabled.
+	 */
+	public UserBloomFilter getUserFilter() {
+		return userFilter;
+	}
+
+	/**
+	 * Returns the page positions of recent searches, shared by every session of the component.
+	 */
+	public SearchAnchors getSearchAnchors() {
+		return searchAnchors;
+	}
+
+	/**
+	 * Returns the recent user counts by search, shared by every session of the component.
+	 */
+	public UserCountCache getUserCounts() {
+		return userCounts;
+	}
+
+	/**
+	 * Returns whether the total user count is read from the database statistics.
+	 */
+	public boolean isApproximateCount() {
+		return approximateCount;
+	}
+
+	public int getSyncFetchSize() {
+		return syncFetchSize;
+	}
+
+	public int getSyncBatchSize() {
+		return syncBatchSize;
+	}
+
+	public String getSyncDeletionMode() {
+		return syncDeletionMode;
+	}
+
+	/**
+	 * Returns the seconds of changes before the watermark read again by each changed users
+	 * synchronization, to catch rows committed late with an earlier timestamp.
+	 */
+	public int getSyncLookback() {
+		return syncLookback;
+	}
+
+	public DatabaseConnection createConnection() {
+		return new DatabaseConnection(connectionPool, true);
+	}
+
+	public DatabaseUserRepository createUserRepository(DatabaseConnection connection) {
+		return new DatabaseUserRepository(connection, userQueries, userCache.isEnabled() ? userCache : null, userFilter, userLookups);
+	}
+
+	/**
+	 * Rebuilds the filter of known usernames and emails from a scan of the users table,
+	 * nothing when the component was already closed or a full synchronization rebuilt it
+	 * within the rebuild interval.
+	 */
+	public void rebuildUserFilter() {
+		if (userFilter == null) {
+			return;
+		}
+		if (userFilter.isReady() && System.currentTimeMillis() - userFilter.getLastRebuildAt() < TimeUnit.SECONDS.toMillis(userFilterRebuildInterval) / 2) {
+			LOGGER.debugv("Users filter of component {0} was rebuilt recently", id);
+			return;
+		}
+		if (!acquire()) {
+			return;
+		}
+		UserBloomFilter.Rebuild rebuild = null;
+		try (DatabaseConnection connection = createConnection()) {
+			DatabaseUserRepository userRepository = createUserRepository(connection);
+			rebuild = userFilter.startRebuild(userRepository.countUsers());
+			if (rebuild == null) {
+				LOGGER.debugv("Users filter of component {0} is already being rebuilt", id);
+				return;
+			}
+			try (Stream<DatabaseUser> databaseUsers = userRepository.streamUsers(syncFetchSize)) {
+				databaseUsers.forEach(rebuild::add);
+			}
+			rebuild.publish();
+			LOGGER.debugv("Rebuilt users filter of component {0} in {1}ms", id, userFilter.getLastRebuildMillis());
+		} catch (RuntimeException e) {
+			if (rebuild != null) {
+				rebuild.abandon();
+			}
+			LOGGER.warnv("Unable to rebuild users filter of component {0}: {1}", id, e.getMessage());
+		} finally {
+			release();
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		LOGGER.debugv("Closing resources of component {0}", id);
+		if (userFilterRebuilder != null) {
+			userFilterRebuilder.shutdownNow();
+		}
+		unregisterMBean(userCacheName, userCache);
+		unregisterMBean(userFilterName, userFilter);
+		unregisterMBean(userLookupsName, userLookups);
+		unregisterMBean(passwordVerifierName, passwordVerifier);
+		passwordVerifier.close();
+		connectionPool.close();
+	}
+
+	/**
+	 * Registers a user of the resources, returning false when the component was already
+	 * closed and a current one must be looked up instead. Every successful call must be
+	 * followed by a call to {@link #release()}.
+	 */
+	public synchronized boolean acquire() {
+		if (closed) {
+			return false;
+		}
+		references++;
+		return true;
+	}
+
+	public void release() {
+		boolean drained;
+		synchronized (this) {
+			references--;
+			drained = retired && references == 0;
+		}
+		if (drained) {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the resources once every session and synchronization using them released them,
+	 * after the component was replaced or removed.
+	 */
+	public void retire() {
+		boolean drained;
+		synchronized (this) {
+			retired = true;
+			drained = references == 0;
+		}
+		if (drained) {
+			close();
+		}
+	}
+
+	// Private Methods
+
+	private static HashProfile getRehashProfile(ComponentModel model) {
+		PasswordHashFunction function = PasswordHashFunction.getById(ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_REHASH_FUNCTION), DBFederationConstants.REHASH_NONE));
+		if (function == null) {
+			return null;
+		}
+		if (!function.isRehashTarget()) {
+			LOGGER.warnv("Ignoring rehash function {0} of component {1}, only bcrypt and pbkdf2 are allowed", function.getId(), model.getId());
+			return null;
+		}
+		return new HashProfile(function, getInteger(model, DBFederationConstants.CONFIG_REHASH_COST, function.getCost(model)));
+	}
+
+	/**
+	 * Registers the MBean under the name of its type and component, replacing the one of a
+	 * previous component with the same ID, which may still be draining.
+	 */
+	private ObjectName registerMBean(Object mbean, String type) {
+		synchronized (MBEAN_OWNERS) {
+			try {
+				ObjectName name = new ObjectName("org.kewt.databaseprovider:type=" + type + ",component=" + ObjectName.quote(id));
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(mbean, name);
+				MBEAN_OWNERS.put(name, mbean);
+				return name;
+			} catch (Exception e) {
+				LOGGER.warnv("Unable to register {0} MBean of component {1}: {2}", type, id, e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Unregisters the MBean only while the name is still registered to it, so closing a
+	 * replaced component does not unregister the MBeans of the component replacing it.
+	 */
+	private void unregisterMBean(ObjectName name, Object mbean) {
+		if (name == null) {
+			return;
+		}
+		synchronized (MBEAN_OWNERS) {
+			if (!MBEAN_OWNERS.remove(name, mbean)) {
+				return;
+			}
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (Exception e) {
+				LOGGER.debugv("Unable to unregister MBean {0}: {1}", name, e.getMessage());
+			}
+		}
+	}
+
+	private static Integer getInteger(ComponentModel model, String key, Integer defaultValue) {
+		String value = model.get(key);
+		return value != null && !value.trim().isEmpty() ? Integer.valueOf(value.trim()) : defaultValue;
+	}
+
+}
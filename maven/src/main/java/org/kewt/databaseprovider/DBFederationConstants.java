@@ -2,6 +2,10 @@ package org.kewt.databaseprovider;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.kewt.databaseprovider.crypto.PasswordHashFunction;
 
 public class DBFederationConstants {
 	
@@ -11,6 +15,26 @@ public class DBFederationConstants {
 	
 	public static final String CONFIG_JDBC_PASSWORD = "jdbc_password";
 	
+	public static final String CONFIG_POOL_MAX_SIZE = "pool_max_size";
+	
+	public static final String CONFIG_POOL_IDLE_TIMEOUT = "pool_idle_timeout";
+	
+	public static final String CONFIG_POOL_CONNECTION_TIMEOUT = "pool_connection_timeout";
+	
+	public static final String CONFIG_POOL_LEAK_DETECTION_THRESHOLD = "pool_leak_detection_threshold";
+	
+	public static final String CONFIG_CACHE_MAX_SIZE = "cache_max_size";
+	
+	public static final String CONFIG_CACHE_TTL = "cache_ttl";
+	
+	public static final String CONFIG_BLOOM_FILTER = "bloom_filter";
+	
+	public static final String CONFIG_BLOOM_FILTER_REBUILD_INTERVAL = "bloom_filter_rebuild_interval";
+	
+	public static final String CONFIG_COUNT_CACHE_TTL = "count_cache_ttl";
+	
+	public static final String CONFIG_COUNT_MODE = "count_mode";
+	
 	public static final String CONFIG_USERS_TABLE = "users_table";
 	
 	public static final String CONFIG_ID_COLUMN = "id_column";
@@ -25,6 +49,12 @@ public class DBFederationConstants {
 	
 	public static final String CONFIG_PASSWORD_COLUMN = "password_column";
 	
+	public static final String CONFIG_LAST_MODIFIED_COLUMN = "last_modified_column";
+	
+	public static final String CONFIG_ATTRIBUTE_COLUMNS = "attribute_columns";
+	
+	public static final String CONFIG_CHANGELOG_TABLE = "changelog_table";
+	
 	public static final String CONFIG_PASSWORD_HASH_FUNCTION = "password_hash_function";
 	
 	public static final String CONFIG_DIGEST_SALT = "digest_salt";
@@ -37,8 +67,32 @@ public class DBFederationConstants {
 	
 	public static final String CONFIG_PBKDF2_ITERATIONS  = "pbkdf2_iterations";
 	
+	public static final String CONFIG_REHASH_FUNCTION = "rehash_function";
+	
+	public static final String CONFIG_REHASH_COST = "rehash_cost";
+	
+	public static final String CONFIG_CALIBRATION_TARGET = "calibration_target";
+	
+	public static final String CONFIG_VERIFY_CONCURRENCY = "verify_concurrency";
+	
+	public static final String CONFIG_VERIFY_QUEUE_SIZE = "verify_queue_size";
+	
+	public static final String CONFIG_VERIFY_WAIT_TIMEOUT = "verify_wait_timeout";
+	
+	public static final String CONFIG_CREDENTIAL_CACHE_TTL = "credential_cache_ttl";
+	
+	public static final String CONFIG_CREDENTIAL_CACHE_MAX_SIZE = "credential_cache_max_size";
+	
 	public static final String CONFIG_SYNC_MODE  = "sync_mode";
 	
+	public static final String CONFIG_SYNC_FETCH_SIZE = "sync_fetch_size";
+	
+	public static final String CONFIG_SYNC_BATCH_SIZE = "sync_batch_size";
+	
+	public static final String CONFIG_SYNC_LOOKBACK = "sync_lookback";
+	
+	public static final String CONFIG_SYNC_DELETION_MODE = "sync_deletion_mode";
+	
 	public static final String SYNC_READONLY = "READ_ONLY";
 	
 	public static final String SYNC_READWRITE = "READ_WRITE";
@@ -47,6 +101,32 @@ public class DBFederationConstants {
 	
 	public static final List<String> SYNC_OPTIONS = Arrays.asList(SYNC_READONLY, SYNC_READWRITE, SYNC_READWRITEDELETE);
 	
+	public static final String SYNC_DELETION_NONE = "NONE";
+	
+	public static final String SYNC_DELETION_DISABLE = "DISABLE";
+	
+	public static final String SYNC_DELETION_REMOVE = "REMOVE";
+	
+	public static final List<String> SYNC_DELETION_OPTIONS = Arrays.asList(SYNC_DELETION_NONE, SYNC_DELETION_DISABLE, SYNC_DELETION_REMOVE);
+	
+	public static final String REHASH_NONE = "NONE";
+	
+	public static final List<String> REHASH_OPTIONS = Stream.concat(Stream.of(REHASH_NONE), PasswordHashFunction.rehashTargetIds().stream()).collect(Collectors.toList());
+	
+	public static final String COUNT_EXACT = "EXACT";
+	
+	public static final String COUNT_APPROXIMATE = "APPROXIMATE";
+	
+	public static final List<String> COUNT_OPTIONS = Arrays.asList(COUNT_EXACT, COUNT_APPROXIMATE);
+	
+	public static final String STATE_LAST_MODIFIED_WATERMARK = "last_modified_watermark";
+	
+	public static final String STATE_CHANGELOG_WATERMARK = "changelog_watermark";
+	
+	public static final String STATE_ATTRIBUTE_PREFIX = "db-federation.";
+	
 	public static final String ATTRIBUTE_DATABASE_ID = "DATABASE_ID";
+	
+	public static final String ATTRIBUTE_DATABASE_ORPHAN = "DATABASE_ORPHAN";
 
 }
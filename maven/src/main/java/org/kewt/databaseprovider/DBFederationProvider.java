@@ -3,16 +3,25 @@ package org.kewt.databaseprovider;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 import org.jboss.logging.Logger;
-import org.kewt.databaseprovider.crypto.PasswordHashFunction;
+import org.kewt.databaseprovider.crypto.HashProfile;
+import org.kewt.databaseprovider.crypto.VerifiedCredentialCache;
 import org.kewt.databaseprovider.database.DatabaseConnection;
 import org.kewt.databaseprovider.model.DatabaseUser;
+import org.kewt.databaseprovider.model.DatabaseUserAdapter;
 import org.kewt.databaseprovider.model.ReadOnlyUserDelegate;
 import org.kewt.databaseprovider.model.WritableUserDelegate;
 import org.kewt.databaseprovider.repository.DatabaseUserRepository;
+import org.kewt.databaseprovider.repository.SearchQuery;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
@@ -23,6 +32,7 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.ImportedUserValidation;
@@ -46,22 +56,40 @@ public class DBFederationProvider
 	
 	protected static final Logger LOGGER = Logger.getLogger(DBFederationProvider.class);
 	
+	protected static final int SEARCH_PAGE_SIZE = 100;
+	
 	protected KeycloakSession session;
 	
 	protected ComponentModel model;
 	
+	protected DBFederationComponent component;
+	
 	protected DatabaseConnection connection;
 	
 	protected DatabaseUserRepository userRepository;
 	
 	protected Collection<WritableUserDelegate> delegates;
 	
-	public DBFederationProvider(KeycloakSession session, ComponentModel model, DatabaseConnection connection) {
+	protected Map<Integer, DatabaseUser> sessionUsers;
+	
+	protected Set<String> missingUsernames;
+	
+	protected Set<String> missingEmails;
+	
+	/**
+	 * Creates a provider using the resources of the given component, acquired by the caller
+	 * and released when the provider is closed.
+	 */
+	public DBFederationProvider(KeycloakSession session, ComponentModel model, DBFederationComponent component) {
         this.session = session;
         this.model = model;
-        this.connection = connection;
-        this.userRepository = new DatabaseUserRepository(connection, model);
+        this.component = component;
+        this.connection = component.createConnection();
+        this.userRepository = component.createUserRepository(connection);
         this.delegates = new ArrayList<>();
+        this.sessionUsers = new HashMap<>();
+        this.missingUsernames = new HashSet<>();
+        this.missingEmails = new HashSet<>();
     }
 	
 	// UserStorageProvider
@@ -69,18 +97,26 @@ public class DBFederationProvider
 	@Override
 	public void close() {
 		LOGGER.debugv("close:");
-		String syncMode = model.get(DBFederationConstants.CONFIG_SYNC_MODE);
- 		if (DBFederationConstants.SYNC_READWRITE.equals(syncMode) ||
- 			DBFederationConstants.SYNC_READWRITEDELETE.equals(syncMode)) {
- 			for (WritableUserDelegate delegate : delegates) {
- 				if (delegate.isDirty()) {
- 					LOGGER.debugv("  updating {0}", delegate.getUsername());
- 					userRepository.update(delegate.getDatabaseUser());
- 				}
- 			}
- 		}
-		delegates.clear();
-		connection.close();
+		try {
+			String syncMode = model.get(DBFederationConstants.CONFIG_SYNC_MODE);
+			if (DBFederationConstants.SYNC_READWRITE.equals(syncMode) ||
+				DBFederationConstants.SYNC_READWRITEDELETE.equals(syncMode)) {
+				for (WritableUserDelegate delegate : delegates) {
+					if (delegate.isDirty()) {
+						LOGGER.debugv("  updating {0}", delegate.getUsername());
+						userRepository.update(delegate.getDatabaseUser());
+						invalidateSearches();
+					}
+				}
+			}
+			delegates.clear();
+			sessionUsers.clear();
+			missingUsernames.clear();
+			missingEmails.clear();
+			connection.close();
+		} finally {
+			component.release();
+		}
 	}
 	
 	// UserLookupProvider
@@ -88,8 +124,13 @@ public class DBFederationProvider
 	@Override
 	public UserModel getUserById(RealmModel realm, String id) {
 		LOGGER.debugv("getUserById: {0}", id);
-		Integer databaseId = Integer.valueOf(id);
-		DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+		Integer databaseId;
+		try {
+			databaseId = Integer.valueOf(StorageId.externalId(id));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		DatabaseUser databaseUser = loadUserById(databaseId);
     	if (databaseUser != null) {
     		return createAdapter(realm, databaseUser);
     	}
@@ -99,7 +140,7 @@ public class DBFederationProvider
 	@Override
 	public UserModel getUserByUsername(RealmModel realm, String username) {
 		LOGGER.debugv("getUserByUsername: {0}", username);
-    	DatabaseUser databaseUser = userRepository.getUserByUsername(username);
+    	DatabaseUser databaseUser = loadUserByUsername(realm, username);
     	if (databaseUser != null) {
     		return createAdapter(realm, databaseUser);
     	}
@@ -109,7 +150,7 @@ public class DBFederationProvider
 	@Override
 	public UserModel getUserByEmail(RealmModel realm, String email) {
 		LOGGER.debugv("getUserByEmail: {0}", email);
-		DatabaseUser databaseUser = userRepository.getUserByEmail(email);
+		DatabaseUser databaseUser = loadUserByEmail(realm, email);
     	if (databaseUser != null) {
     		return createAdapter(realm, databaseUser);
     	}
@@ -130,6 +171,9 @@ public class DBFederationProvider
  	 		databaseUser.setLastName("");
  	 		databaseUser.setPasswordHash("");
  	 		userRepository.insert(databaseUser);
+ 	 		invalidateSearches();
+ 	 		sessionUsers.put(databaseUser.getId(), databaseUser);
+ 	 		missingUsernames.remove(username);
  	 		return createAdapter(realm, databaseUser);
  		} else {
  			return null;
@@ -142,9 +186,12 @@ public class DBFederationProvider
  		if (isSyncDeleteMode()) {
  			Integer databaseId = getDatabaseId(user);
  			if (databaseId != null) {
- 				DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+ 				DatabaseUser databaseUser = loadUserById(databaseId);
  				if (databaseUser != null) {
- 					return userRepository.delete(databaseUser);
+ 					sessionUsers.remove(databaseId);
+ 					boolean deleted = userRepository.delete(databaseUser);
+ 					invalidateSearches();
+ 					return deleted;
  				}
  			}
  		}
@@ -156,19 +203,44 @@ public class DBFederationProvider
  	@Override
  	public int getUsersCount(RealmModel realm) {
  		LOGGER.debugv("getUsersCount:");
- 		return 0;
+ 		return countUsers(component.getUserQueries().getSearchCompiler().compile("*"));
+ 	}
+ 	
+ 	/**
+ 	 * Deprecated by Keycloak, counts as the params overload with the search as the only param.
+ 	 */
+ 	@Deprecated
+ 	@Override
+ 	public int getUsersCount(RealmModel realm, String search) {
+ 		return getUsersCount(realm, Collections.singletonMap(UserModel.SEARCH, search));
+ 	}
+ 	
+ 	@Override
+ 	public int getUsersCount(RealmModel realm, Map<String, String> params) {
+ 		LOGGER.debugv("getUsersCount: {0}", params);
+ 		SearchQuery search = component.getUserQueries().getSearchCompiler().compile(params);
+ 		return search != null ? countUsers(search) : 0;
  	}
  	
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
     	LOGGER.debugv("searchForUserStream: {0}", search);
-    	return Stream.empty();
+    	return searchForUserStream(realm, Collections.singletonMap(UserModel.SEARCH, search), firstResult, maxResults);
 	}
     
 	@Override
 	public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
 		LOGGER.debugv("searchForUserStream: {0}", params);
-		return Stream.empty();
+		SearchQuery search = component.getUserQueries().getSearchCompiler().compile(params);
+		if (search == null) {
+			return Stream.empty();
+		}
+		// pages are taken from the users table, local users are then left out of each page, so
+		// offsets and counts stay those of the table and a page may hold fewer users than asked
+		int pageSize = maxResults != null && maxResults > 0 ? Math.min(maxResults, SEARCH_PAGE_SIZE) : SEARCH_PAGE_SIZE;
+		return userRepository.streamSearchUsers(search, component.getSearchAnchors(), firstResult, maxResults, pageSize)
+			.filter((DatabaseUser databaseUser) -> !isLocalUser(realm, databaseUser))
+			.map((DatabaseUser databaseUser) -> createSearchAdapter(realm, databaseUser));
 	}
 
 	@Override
@@ -180,7 +252,20 @@ public class DBFederationProvider
 	@Override
 	public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
 		LOGGER.debugv("searchForUserByUserAttributeStream: {0}", attrName);
-		return Stream.empty();
+		SearchQuery search = component.getUserQueries().getSearchCompiler().compileAttribute(attrName, attrValue);
+		if (search == null) {
+			return Stream.empty();
+		}
+		Stream<DatabaseUser> databaseUsers = userRepository.streamSearchUsers(search, null, null, null, SEARCH_PAGE_SIZE);
+		if (!isLocalAttribute(attrName)) {
+			// imported users do not store the extra columns, the local search cannot find them
+			return databaseUsers.map((DatabaseUser databaseUser) -> {
+				return isLocalUser(realm, databaseUser) ? createAdapter(realm, remember(databaseUser)) : createSearchAdapter(realm, databaseUser);
+			});
+		}
+		return databaseUsers
+			.filter((DatabaseUser databaseUser) -> !isLocalUser(realm, databaseUser))
+			.map((DatabaseUser databaseUser) -> createSearchAdapter(realm, databaseUser));
 	}
 	
 	// ImportedUserValidation
@@ -191,7 +276,7 @@ public class DBFederationProvider
 		Integer databaseId = getDatabaseId(user);
 		
 		if (databaseId != null) {
-			DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+			DatabaseUser databaseUser = loadUserById(databaseId);
 			if (databaseUser == null) {
 				return null;
 			}
@@ -228,7 +313,7 @@ public class DBFederationProvider
 		if (databaseId == null) {
 			return false;
 		}
-		DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+		DatabaseUser databaseUser = loadUserById(databaseId);
 		if (databaseUser == null || databaseUser.getPasswordHash() == null || databaseUser.getPasswordHash().equals("")) {
 			return false;
 		}
@@ -245,14 +330,30 @@ public class DBFederationProvider
 		if (databaseId == null) {
 			return false;
 		}
-		DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+		DatabaseUser databaseUser = loadUserById(databaseId);
 		if (databaseUser == null || databaseUser.getPasswordHash() == null || databaseUser.getPasswordHash().equals("")) {
 			return false;
 		}
 		
 		UserCredentialModel credential = (UserCredentialModel) input;
-		PasswordHashFunction hash = PasswordHashFunction.getById(model.get(DBFederationConstants.CONFIG_PASSWORD_HASH_FUNCTION));
-		return hash.verify(credential.getValue(), databaseUser.getPasswordHash(), model);
+		VerifiedCredentialCache verifiedCredentials = component.getVerifiedCredentialCache();
+		String cacheKey = databaseId.toString();
+		if (verifiedCredentials != null && verifiedCredentials.matches(cacheKey, credential.getValue(), databaseUser.getPasswordHash())) {
+			return true;
+		}
+		String storedHash = databaseUser.getPasswordHash();
+		HashProfile profile = HashProfile.detect(storedHash, component.getPasswordProfile());
+		boolean valid = component.getPasswordVerifier().verify(component.getPasswordEncoder(profile), credential.getValue(), profile.strip(storedHash));
+		if (valid) {
+			HashProfile rehashProfile = component.getRehashProfile();
+			if (rehashProfile != null && !rehashProfile.equals(profile) && isSyncWriteMode()) {
+				rehash(databaseUser, rehashProfile, credential.getValue());
+			}
+			if (verifiedCredentials != null) {
+				verifiedCredentials.put(cacheKey, credential.getValue(), databaseUser.getPasswordHash());
+			}
+		}
+		return valid;
 	}
 	
 	// CredentialInputUpdater Methods
@@ -274,12 +375,13 @@ public class DBFederationProvider
  			}
  	        UserCredentialModel credential = (UserCredentialModel) input;
  	        // String salt = model.get(DBFederationConstants.CONFIG_SALT);
- 	        PasswordHashFunction hash = PasswordHashFunction.getById(model.get(DBFederationConstants.CONFIG_PASSWORD_HASH_FUNCTION));
- 			String hashedPassword = hash.digest(credential.getValue(), model);
- 	        DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+ 			String hashedPassword = encodePassword(credential.getValue());
+ 	        DatabaseUser databaseUser = loadUserById(databaseId);
  	        if (databaseUser == null) {
  	        	return false;
  	        }
+ 	        databaseUser.setPasswordHash(hashedPassword);
+ 	        invalidateVerifiedCredential(databaseId);
  	        return userRepository.updatePassword(databaseUser.getId(), hashedPassword);
  		} else {
  			throw new IllegalArgumentException("Cannot change password in READONLY mode");
@@ -298,10 +400,12 @@ public class DBFederationProvider
 			if (databaseId == null) {
 				return;
 			}
-	        DatabaseUser databaseUser = userRepository.getUserById(databaseId);
+	        DatabaseUser databaseUser = loadUserById(databaseId);
 	        if (databaseUser == null) {
 	        	return;
 	        }
+	        databaseUser.setPasswordHash("");
+	        invalidateVerifiedCredential(databaseId);
 	        userRepository.updatePassword(databaseUser.getId(), "");
  		} else {
  			throw new IllegalArgumentException("Cannot reset password in READONLY mode");
@@ -331,6 +435,29 @@ public class DBFederationProvider
     	return createWritableDelegate(local, databaseUser);
     }
     
+    /**
+     * Returns a read only view of a database user found by a search, without importing it.
+     */
+    protected UserModel createSearchAdapter(RealmModel realm, DatabaseUser databaseUser) {
+    	return new DatabaseUserAdapter(session, realm, model, databaseUser);
+    }
+    
+    /**
+     * Tells whether a user with the username of the database user is stored locally, imported
+     * or not. Searches skip those users since the local storage already returns them.
+     */
+    protected boolean isLocalUser(RealmModel realm, DatabaseUser databaseUser) {
+    	return UserStoragePrivateUtil.userLocalStorage(session).getUserByUsername(realm, databaseUser.getUsername()) != null;
+    }
+    
+    /**
+     * Tells whether imported users store the given attribute, so the local storage finds them by it.
+     */
+    protected boolean isLocalAttribute(String attrName) {
+    	return UserModel.USERNAME.equals(attrName) || UserModel.EMAIL.equals(attrName) || UserModel.FIRST_NAME.equals(attrName)
+    		|| UserModel.LAST_NAME.equals(attrName) || DBFederationConstants.ATTRIBUTE_DATABASE_ID.equals(attrName);
+    }
+    
     protected WritableUserDelegate createWritableDelegate(UserModel local, DatabaseUser databaseUser) {
     	LOGGER.debugv("createWritableDelegate: {0} {1}", local, databaseUser);
     	WritableUserDelegate delegate = new WritableUserDelegate(local, databaseUser);
@@ -344,6 +471,172 @@ public class DBFederationProvider
     	return delegate;
     }
     
+    /**
+     * Returns the database user with the given ID, read at most once per session. Every
+     * callback of the session shares the same instance, so changes made to it are seen by all.
+     */
+    protected DatabaseUser loadUserById(Integer databaseId) {
+    	DatabaseUser databaseUser = sessionUsers.get(databaseId);
+    	if (databaseUser == null) {
+    		databaseUser = userRepository.getUserById(databaseId);
+    		if (databaseUser != null) {
+    			sessionUsers.put(databaseUser.getId(), databaseUser);
+    		}
+    	}
+    	return databaseUser;
+    }
+    
+    /**
+     * Returns the database user with the given username. When the realm allows logging in with
+     * an email and the value looks like one, it is resolved as username and as email in a single
+     * query, and both outcomes are remembered for the rest of the session.
+     */
+    protected DatabaseUser loadUserByUsername(RealmModel realm, String username) {
+    	DatabaseUser databaseUser = findSessionUser(username, null);
+    	if (databaseUser != null || missingUsernames.contains(username)) {
+    		return databaseUser;
+    	}
+    	if (isUsernameOrEmail(realm, username)) {
+    		return resolveUsernameOrEmail(username, true);
+    	}
+    	databaseUser = remember(userRepository.getUserByUsername(username));
+    	if (databaseUser == null) {
+    		missingUsernames.add(username);
+    	}
+    	return databaseUser;
+    }
+    
+    protected DatabaseUser loadUserByEmail(RealmModel realm, String email) {
+    	DatabaseUser databaseUser = findSessionUser(null, email);
+    	if (databaseUser != null || missingEmails.contains(email)) {
+    		return databaseUser;
+    	}
+    	if (isUsernameOrEmail(realm, email)) {
+    		return resolveUsernameOrEmail(email, false);
+    	}
+    	databaseUser = remember(userRepository.getUserByEmail(email));
+    	if (databaseUser == null) {
+    		missingEmails.add(email);
+    	}
+    	return databaseUser;
+    }
+    
+    protected DatabaseUser resolveUsernameOrEmail(String value, boolean username) {
+    	List<DatabaseUser> databaseUsers = userRepository.getUsersByUsernameOrEmail(value);
+    	DatabaseUser byUsername = findMatch(databaseUsers, value, DatabaseUser::getUsername);
+    	DatabaseUser byEmail = findMatch(databaseUsers, value, DatabaseUser::getEmail);
+    	if (byUsername != null) {
+    		byUsername = remember(byUsername);
+    	} else {
+    		missingUsernames.add(value);
+    	}
+    	if (byEmail != null) {
+    		byEmail = remember(byEmail);
+    	} else {
+    		missingEmails.add(value);
+    	}
+    	return username ? byUsername : byEmail;
+    }
+    
+    protected DatabaseUser findSessionUser(String username, String email) {
+    	for (DatabaseUser databaseUser : sessionUsers.values()) {
+    		if (username != null ? username.equals(databaseUser.getUsername()) : email.equals(databaseUser.getEmail())) {
+    			return databaseUser;
+    		}
+    	}
+    	return null;
+    }
+    
+    /**
+     * Picks the user whose column equals value, ignoring case when none matches exactly
+     * since the database collation may have matched it that way.
+     */
+    protected DatabaseUser findMatch(List<DatabaseUser> databaseUsers, String value, Function<DatabaseUser, String> column) {
+    	for (DatabaseUser databaseUser : databaseUsers) {
+    		if (value.equals(column.apply(databaseUser))) {
+    			return databaseUser;
+    		}
+    	}
+    	for (DatabaseUser databaseUser : databaseUsers) {
+    		if (value.equalsIgnoreCase(column.apply(databaseUser))) {
+    			return databaseUser;
+    		}
+    	}
+    	return null;
+    }
+    
+    protected boolean isUsernameOrEmail(RealmModel realm, String value) {
+    	return realm.isLoginWithEmailAllowed() && value.indexOf('@') >= 0;
+    }
+    
+    protected DatabaseUser remember(DatabaseUser databaseUser) {
+    	if (databaseUser == null) {
+    		return null;
+    	}
+    	DatabaseUser known = sessionUsers.putIfAbsent(databaseUser.getId(), databaseUser);
+    	return known != null ? known : databaseUser;
+    }
+    
+    /**
+     * Counts the users matching the given search with a single count query, reusing a recent
+     * count of the same search. The total count is read from the database statistics in the
+     * approximate count mode. Imported users are counted too although searches leave them out,
+     * a count never reads the rows or looks users up in the local storage.
+     */
+    protected int countUsers(SearchQuery search) {
+    	return component.getUserCounts().get(search.getKey(), () -> {
+    		if (search.getPredicate() == null && component.isApproximateCount()) {
+    			Long estimate = userRepository.estimateUserCount();
+    			if (estimate != null) {
+    				return (int) Math.min(Integer.MAX_VALUE, estimate);
+    			}
+    		}
+    		return userRepository.countUsers(search);
+    	});
+    }
+    
+    /**
+     * Drops the counts and search anchors of the component after users were written.
+     */
+    protected void invalidateSearches() {
+    	component.getUserCounts().invalidateAll();
+    	component.getSearchAnchors().clear();
+    }
+    
+    /**
+     * Hashes a new password with the rehash profile when configured, the configured function otherwise.
+     */
+    protected String encodePassword(String rawPassword) {
+    	HashProfile rehashProfile = component.getRehashProfile();
+    	if (rehashProfile != null) {
+    		return rehashProfile.format(component.getPasswordEncoder(rehashProfile).encode(rawPassword));
+    	}
+    	return component.getPasswordEncoder().encode(rawPassword);
+    }
+    
+    /**
+     * Replaces the stored hash of a just verified password with one of the given profile.
+     * Failures are logged only, the login goes on with the current hash.
+     */
+    protected void rehash(DatabaseUser databaseUser, HashProfile rehashProfile, String rawPassword) {
+    	try {
+    		String hashedPassword = rehashProfile.format(component.getPasswordEncoder(rehashProfile).encode(rawPassword));
+    		if (userRepository.updatePassword(databaseUser.getId(), hashedPassword)) {
+    			LOGGER.debugv("rehashed password of {0} to {1}", databaseUser.getUsername(), rehashProfile);
+    			databaseUser.setPasswordHash(hashedPassword);
+    		}
+    	} catch (RuntimeException e) {
+    		LOGGER.warnv("Unable to rehash password of {0}: {1}", databaseUser.getUsername(), e.getMessage());
+    	}
+    }
+    
+    protected void invalidateVerifiedCredential(Integer databaseId) {
+    	VerifiedCredentialCache verifiedCredentials = component.getVerifiedCredentialCache();
+    	if (verifiedCredentials != null) {
+    		verifiedCredentials.invalidate(databaseId.toString());
+    	}
+    }
+    
     protected Integer getDatabaseId(UserModel user) {
     	String databaseId = user.getFirstAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ID);
     	try {
@@ -1,31 +1,40 @@
 package org.kewt.databaseprovider;
 
 import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang3.ObjectUtils;
 import org.jboss.logging.Logger;
+import org.kewt.databaseprovider.cache.UserBloomFilter;
+import org.kewt.databaseprovider.crypto.CostCalibrator;
 import org.kewt.databaseprovider.crypto.PasswordHashFunction;
 import org.kewt.databaseprovider.database.DatabaseConnection;
 import org.kewt.databaseprovider.database.DatabaseException;
 import org.kewt.databaseprovider.model.DatabaseUser;
+import org.kewt.databaseprovider.repository.DatabaseUserQueries;
 import org.kewt.databaseprovider.repository.DatabaseUserRepository;
+import org.kewt.databaseprovider.sync.ChangeLogPoller;
+import org.kewt.databaseprovider.sync.DatabaseUserSynchronizer;
 import org.keycloak.Config.Scope;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
-import org.keycloak.models.UserProvider;
-import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
-import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProviderFactory;
 import org.keycloak.storage.UserStorageProviderModel;
 import org.keycloak.storage.user.ImportSynchronization;
@@ -62,6 +71,34 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 				.type(ProviderConfigProperty.PASSWORD)
 				.secret(true)
 				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_POOL_MAX_SIZE)
+				.label("user-federation-provider.db.poolMaxSize")
+				.helpText("user-federation-provider.db.poolMaxSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(10)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_POOL_IDLE_TIMEOUT)
+				.label("user-federation-provider.db.poolIdleTimeout")
+				.helpText("user-federation-provider.db.poolIdleTimeoutHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(600)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_POOL_CONNECTION_TIMEOUT)
+				.label("user-federation-provider.db.poolConnectionTimeout")
+				.helpText("user-federation-provider.db.poolConnectionTimeoutHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(30)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_POOL_LEAK_DETECTION_THRESHOLD)
+				.label("user-federation-provider.db.poolLeakDetectionThreshold")
+				.helpText("user-federation-provider.db.poolLeakDetectionThresholdHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(0)
+				.add()
 			// Database Settings
 			.property()
 				.name(DBFederationConstants.CONFIG_USERS_TABLE)
@@ -110,6 +147,24 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 				.type(ProviderConfigProperty.STRING_TYPE)
 				.defaultValue("password")
 				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_LAST_MODIFIED_COLUMN)
+				.label("user-federation-provider.db.columnLastModified")
+				.helpText("user-federation-provider.db.columnLastModifiedHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_ATTRIBUTE_COLUMNS)
+				.label("user-federation-provider.db.columnAttributes")
+				.helpText("user-federation-provider.db.columnAttributesHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_CHANGELOG_TABLE)
+				.label("user-federation-provider.db.changeLogTable")
+				.helpText("user-federation-provider.db.changeLogTableHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
 			.property()
 				.name(DBFederationConstants.CONFIG_PASSWORD_HASH_FUNCTION)
 				.label("user-federation-provider.db.passwordHashFunction")
@@ -152,6 +207,105 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 				.type(ProviderConfigProperty.STRING_TYPE)
 				.defaultValue(300000)
 				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_REHASH_FUNCTION)
+				.label("user-federation-provider.db.rehashFunction")
+				.helpText("user-federation-provider.db.rehashFunctionHelp")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.defaultValue(DBFederationConstants.REHASH_NONE)
+				.options(DBFederationConstants.REHASH_OPTIONS)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_REHASH_COST)
+				.label("user-federation-provider.db.rehashCost")
+				.helpText("user-federation-provider.db.rehashCostHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_CALIBRATION_TARGET)
+				.label("user-federation-provider.db.calibrationTarget")
+				.helpText("user-federation-provider.db.calibrationTargetHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_VERIFY_CONCURRENCY)
+				.label("user-federation-provider.db.verifyConcurrency")
+				.helpText("user-federation-provider.db.verifyConcurrencyHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_VERIFY_QUEUE_SIZE)
+				.label("user-federation-provider.db.verifyQueueSize")
+				.helpText("user-federation-provider.db.verifyQueueSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(100)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_VERIFY_WAIT_TIMEOUT)
+				.label("user-federation-provider.db.verifyWaitTimeout")
+				.helpText("user-federation-provider.db.verifyWaitTimeoutHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(5000)
+				.add()
+			// Cache Settings
+			.property()
+				.name(DBFederationConstants.CONFIG_CREDENTIAL_CACHE_TTL)
+				.label("user-federation-provider.db.credentialCacheTtl")
+				.helpText("user-federation-provider.db.credentialCacheTtlHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(0)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_CREDENTIAL_CACHE_MAX_SIZE)
+				.label("user-federation-provider.db.credentialCacheMaxSize")
+				.helpText("user-federation-provider.db.credentialCacheMaxSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(10000)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_CACHE_MAX_SIZE)
+				.label("user-federation-provider.db.cacheMaxSize")
+				.helpText("user-federation-provider.db.cacheMaxSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(10000)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_CACHE_TTL)
+				.label("user-federation-provider.db.cacheTtl")
+				.helpText("user-federation-provider.db.cacheTtlHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(0)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_BLOOM_FILTER)
+				.label("user-federation-provider.db.bloomFilter")
+				.helpText("user-federation-provider.db.bloomFilterHelp")
+				.type(ProviderConfigProperty.BOOLEAN_TYPE)
+				.defaultValue(false)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_BLOOM_FILTER_REBUILD_INTERVAL)
+				.label("user-federation-provider.db.bloomFilterRebuildInterval")
+				.helpText("user-federation-provider.db.bloomFilterRebuildIntervalHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(3600)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_COUNT_CACHE_TTL)
+				.label("user-federation-provider.db.countCacheTtl")
+				.helpText("user-federation-provider.db.countCacheTtlHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(60)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_COUNT_MODE)
+				.label("user-federation-provider.db.countMode")
+				.helpText("user-federation-provider.db.countModeHelp")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.defaultValue(DBFederationConstants.COUNT_EXACT)
+				.options(DBFederationConstants.COUNT_OPTIONS)
+				.add()
+			// Synchronization Settings
 			.property()
 				.name(DBFederationConstants.CONFIG_SYNC_MODE)
 				.label("user-federation-provider.db.syncMode")
@@ -160,8 +314,47 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 				.defaultValue(DBFederationConstants.SYNC_READONLY)
 				.options(DBFederationConstants.SYNC_OPTIONS)
 				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_SYNC_FETCH_SIZE)
+				.label("user-federation-provider.db.syncFetchSize")
+				.helpText("user-federation-provider.db.syncFetchSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(1000)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_SYNC_BATCH_SIZE)
+				.label("user-federation-provider.db.syncBatchSize")
+				.helpText("user-federation-provider.db.syncBatchSizeHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(500)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_SYNC_LOOKBACK)
+				.label("user-federation-provider.db.syncLookback")
+				.helpText("user-federation-provider.db.syncLookbackHelp")
+				.type(ProviderConfigProperty.STRING_TYPE)
+				.defaultValue(60)
+				.add()
+			.property()
+				.name(DBFederationConstants.CONFIG_SYNC_DELETION_MODE)
+				.label("user-federation-provider.db.syncDeletionMode")
+				.helpText("user-federation-provider.db.syncDeletionModeHelp")
+				.type(ProviderConfigProperty.LIST_TYPE)
+				.defaultValue(DBFederationConstants.SYNC_DELETION_NONE)
+				.options(DBFederationConstants.SYNC_DELETION_OPTIONS)
+				.add()
 			.build();
 	}
+	
+	protected final ConcurrentMap<String, DBFederationComponent> components = new ConcurrentHashMap<>();
+	
+	protected final ConcurrentMap<String, String> calibrations = new ConcurrentHashMap<>();
+	
+	protected final ExecutorService calibrationExecutor = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+		Thread thread = new Thread(runnable, "db-federation-calibration");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	// UserStorageProviderFactory Methods
 	
@@ -178,8 +371,7 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 	@Override
 	public DBFederationProvider create(KeycloakSession session, ComponentModel model) {
 		LOGGER.debugv("Creating DBFederationProvider");
-		DatabaseConnection connection = createConnection(model, true);
-		return new DBFederationProvider(session, model, connection);
+		return new DBFederationProvider(session, model, acquireComponent(model));
 	}
 	
 	@Override
@@ -196,6 +388,28 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 	public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model) throws ComponentValidationException {
 		LOGGER.debugv("Validating database configuration");
 		
+		validateInteger(model, DBFederationConstants.CONFIG_POOL_MAX_SIZE, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_POOL_IDLE_TIMEOUT, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_POOL_CONNECTION_TIMEOUT, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_POOL_LEAK_DETECTION_THRESHOLD, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_DIGEST_ITERATIONS, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_BCRYPT_STRENGTH, 4, 31);
+		validateInteger(model, DBFederationConstants.CONFIG_PBKDF2_SALT_LENGTH, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_PBKDF2_ITERATIONS, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_REHASH_COST, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_VERIFY_CONCURRENCY, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_VERIFY_QUEUE_SIZE, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_VERIFY_WAIT_TIMEOUT, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_CREDENTIAL_CACHE_TTL, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_CREDENTIAL_CACHE_MAX_SIZE, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_CACHE_MAX_SIZE, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_CACHE_TTL, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_BLOOM_FILTER_REBUILD_INTERVAL, 60, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_COUNT_CACHE_TTL, 0, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_SYNC_FETCH_SIZE, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_SYNC_BATCH_SIZE, 1, Integer.MAX_VALUE);
+		validateInteger(model, DBFederationConstants.CONFIG_SYNC_LOOKBACK, 0, Integer.MAX_VALUE);
+		
 		try (DatabaseConnection database = createConnection(model, true)) {
 			Integer value = database.querySingle("SELECT 1", null, (ResultSet rs) -> {
 				return 1;
@@ -207,11 +421,106 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 			LOGGER.error(e);
 			throw new ComponentValidationException("Unable to connect to database", e);
 		}
+		
+		try {
+			new DatabaseUserQueries(model);
+		} catch (IllegalArgumentException e) {
+			throw new ComponentValidationException(e.getMessage(), e);
+		}
+		
+		String calibrationTarget = model.get(DBFederationConstants.CONFIG_CALIBRATION_TARGET);
+		if (calibrationTarget != null && !calibrationTarget.trim().isEmpty()) {
+			try {
+				scheduleCalibration(model, Long.parseLong(calibrationTarget.trim()));
+			} catch (NumberFormatException e) {
+				throw new ComponentValidationException("Invalid calibration target " + calibrationTarget, e);
+			}
+		}
+	}
+	
+	/**
+	 * Rejects a setting that is neither empty, for its default, nor an integer between min and max.
+	 */
+	protected void validateInteger(ComponentModel model, String key, int min, int max) throws ComponentValidationException {
+		String value = model.get(key);
+		if (value == null || value.trim().isEmpty()) {
+			return;
+		}
+		int number;
+		try {
+			number = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ComponentValidationException("Invalid " + key + " " + value + ", an integer is expected", e);
+		}
+		if (number < min || number > max) {
+			throw new ComponentValidationException("Invalid " + key + " " + value + ", " + (max == Integer.MAX_VALUE ? "at least " + min : "between " + min + " and " + max) + " is expected");
+		}
+	}
+	
+	/**
+	 * Runs the calibration on a background thread, only when the target or the hash settings changed
+	 * since the last one of the component, so saving the configuration does not wait for benchmarks.
+	 */
+	protected void scheduleCalibration(ComponentModel model, long targetMillis) {
+		Set<PasswordHashFunction> functions = getCalibratedFunctions(model);
+		StringBuilder signature = new StringBuilder().append(targetMillis);
+		for (PasswordHashFunction function : functions) {
+			signature.append(',').append(function.getId()).append(':').append(function.getCost(model));
+		}
+		String previous = model.getId() != null ? calibrations.put(model.getId(), signature.toString()) : null;
+		if (signature.toString().equals(previous)) {
+			return;
+		}
+		ComponentModel snapshot = new ComponentModel(model);
+		calibrationExecutor.execute(() -> {
+			try {
+				calibrate(snapshot, functions, targetMillis);
+			} catch (RuntimeException e) {
+				LOGGER.warnv(e, "Calibration of component {0} failed", snapshot.getName());
+			}
+		});
+	}
+	
+	/**
+	 * Logs the strongest cost of the configured and rehash functions that verifies under targetMillis on this node.
+	 */
+	protected void calibrate(ComponentModel model, Set<PasswordHashFunction> functions, long targetMillis) {
+		CostCalibrator calibrator = new CostCalibrator(model, targetMillis);
+		for (PasswordHashFunction function : functions) {
+			CostCalibrator.Result result = calibrator.calibrate(function);
+			LOGGER.infov("Calibration of {0} for a slowest verification under {1}ms: {2}", model.getName(), targetMillis, result);
+		}
+	}
+	
+	protected Set<PasswordHashFunction> getCalibratedFunctions(ComponentModel model) {
+		Set<PasswordHashFunction> functions = new LinkedHashSet<>();
+		functions.add(PasswordHashFunction.getById(ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_PASSWORD_HASH_FUNCTION), PasswordHashFunction.BCRYPT.getId())));
+		PasswordHashFunction rehashFunction = PasswordHashFunction.getById(ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_REHASH_FUNCTION), DBFederationConstants.REHASH_NONE));
+		if (rehashFunction != null) {
+			functions.add(rehashFunction);
+		}
+		return functions;
+	}
+	
+	@Override
+	public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+		calibrations.remove(model.getId());
+		realm.removeAttribute(DatabaseUserSynchronizer.getStateAttribute(model.getId(), DBFederationConstants.STATE_LAST_MODIFIED_WATERMARK));
+		realm.removeAttribute(DatabaseUserSynchronizer.getStateAttribute(model.getId(), DBFederationConstants.STATE_CHANGELOG_WATERMARK));
+		DBFederationComponent component = components.remove(model.getId());
+		if (component != null) {
+			component.retire();
+		}
 	}
 	
 	@Override
 	public void close() {
 		LOGGER.debugv("Closing DatabaseUserStorageProviderFactory");
+		for (DBFederationComponent component : components.values()) {
+			component.close();
+		}
+		components.clear();
+		calibrationExecutor.shutdownNow();
 	}
 	
 	// ImportSynchronization
@@ -221,50 +530,43 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 		LOGGER.infov("Full Sync started");
 		
 		Instant start = Instant.now();
-		SynchronizationResult result = new SynchronizationResult();
+		SynchronizationResult result;
 		
-		Collection<DatabaseUser> databaseUsers = new ArrayList<>();
+		DBFederationComponent component = acquireComponent(model);
 		try (DatabaseConnection connection = createConnection(model, false)) {
-			DatabaseUserRepository userRepository = new DatabaseUserRepository(connection, model);
-			databaseUsers = userRepository.listUsers();
+			DatabaseUserRepository userRepository = component.createUserRepository(connection);
+			// the index is loaded before the source is read, so users imported by a login in
+			// between are in the source rows too and are not taken for orphans
+			DatabaseUserSynchronizer synchronizer = new DatabaseUserSynchronizer(sessionFactory, realmId, model, component.getSyncBatchSize());
+			synchronizer.loadIndex();
+			// when another rebuild is running the users are only added to the current filters
+			UserBloomFilter filter = component.getUserFilter();
+			UserBloomFilter.Rebuild filterRebuild = filter != null ? filter.startRebuild(userRepository.countUsers()) : null;
+			try (Stream<DatabaseUser> databaseUsers = userRepository.streamUsers(component.getSyncFetchSize())) {
+				if (filterRebuild != null) {
+					result = synchronizer.importUsers(databaseUsers.peek(filterRebuild::add));
+				} else if (filter != null) {
+					result = synchronizer.importUsers(databaseUsers.peek(filter::add));
+				} else {
+					result = synchronizer.importUsers(databaseUsers);
+				}
+				synchronizer.removeOrphans(component.getSyncDeletionMode(), result);
+			} catch (RuntimeException e) {
+				if (filterRebuild != null) {
+					filterRebuild.abandon();
+				}
+				throw e;
+			}
+			if (filterRebuild != null) {
+				filterRebuild.publish();
+			}
+		} finally {
+			component.release();
 		}
-			
-        for (DatabaseUser user : databaseUsers) {
-        	LOGGER.debugv("  processing {0}", user.getUsername());
-        	
-        	try {
-	        	KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
-	        		RealmModel realm = session.realms().getRealm(realmId);
-			        session.getContext().setRealm(realm);
-			        UserProvider userProvider = UserStoragePrivateUtil.userLocalStorage(session);
-			        
-			        UserModel local = userProvider.searchForUserByUserAttributeStream(realm, DBFederationConstants.ATTRIBUTE_DATABASE_ID, user.getId().toString()).findFirst().orElse(null);
-		        	if (local != null) {
-		        		if (user.outOfSync(local)) {
-		        			user.syncToUserModel(local);
-		        			result.increaseUpdated();
-		        		}
-		        	} else {
-		        		local = userProvider.addUser(realm, user.getUsername());
-				        local.setFederationLink(model.getId());
-				        local.setEmail(user.getEmail());
-				        local.setFirstName(user.getFirstName());
-				        local.setLastName(user.getLastName());
-				        local.setEnabled(true);
-				        local.setEmailVerified(true);
-				        local.setSingleAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ID, user.getId().toString());
-				        result.increaseAdded();
-		        	}
-		    	});
-        	} catch (Exception e) {
-        		LOGGER.error(new RuntimeException("Failed syncing user " + user.getUsername(), e));
-        		result.increaseFailed();
-        	}
-        }
 		
 		Instant end = Instant.now();
 		double timeEllapsed = Duration.between(start, end).toMillis() / 1000.0;
-		LOGGER.infov("Full Sync ended in " + timeEllapsed + " seconds (" + result.getAdded() + " added, " + result.getUpdated() + " updated, " + result.getFailed() + " failed)");
+		LOGGER.infov("Full Sync ended in " + timeEllapsed + " seconds (" + result.getAdded() + " added, " + result.getUpdated() + " updated, " + result.getRemoved() + " removed, " + result.getFailed() + " failed)");
 		
 		return result;
 	}
@@ -272,7 +574,110 @@ public class DBFederationProviderFactory implements UserStorageProviderFactory<D
 	@Override
 	public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
 		LOGGER.debugv("syncSince()");
-		return SynchronizationResult.empty();
+		DBFederationComponent component = acquireComponent(model);
+		try {
+			if (component.getUserQueries().getChangeLogTable() != null) {
+				return syncChangeLog(lastSync, sessionFactory, realmId, model, component);
+			}
+			if (component.getUserQueries().getLastModifiedColumn() == null) {
+				return SynchronizationResult.empty();
+			}
+			return syncLastModified(lastSync, sessionFactory, realmId, model, component);
+		} finally {
+			component.release();
+		}
+	}
+	
+	protected SynchronizationResult syncLastModified(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, DBFederationComponent component) {
+		Instant start = Instant.now();
+		SynchronizationResult result;
+		
+		try (DatabaseConnection connection = createConnection(model, false)) {
+			DatabaseUserRepository userRepository = component.createUserRepository(connection);
+			DatabaseUserSynchronizer synchronizer = new DatabaseUserSynchronizer(sessionFactory, realmId, model, component.getSyncBatchSize());
+			String watermark = synchronizer.loadState(DBFederationConstants.STATE_LAST_MODIFIED_WATERMARK);
+			Timestamp synced = watermark != null ? Timestamp.valueOf(watermark) : new Timestamp(lastSync != null ? lastSync.getTime() : 0);
+			Timestamp to = userRepository.getLastModifiedWatermark();
+			if (to == null || (!to.after(synced) && component.getSyncLookback() <= 0)) {
+				LOGGER.debugv("No users changed since {0}", synced);
+				return SynchronizationResult.empty();
+			}
+			// rows of transactions still open at the last run may carry a timestamp before its watermark
+			Timestamp from = new Timestamp(synced.getTime() - component.getSyncLookback() * 1000L);
+			if (to.before(synced)) {
+				to = synced;
+			}
+			
+			try (Stream<DatabaseUser> databaseUsers = userRepository.streamUsersModifiedBetween(from, to, component.getSyncFetchSize())) {
+				result = synchronizer.importUsers(databaseUsers);
+			}
+			if (result.getFailed() == 0) {
+				synchronizer.saveState(DBFederationConstants.STATE_LAST_MODIFIED_WATERMARK, to.toString());
+			}
+		}
+		
+		Instant end = Instant.now();
+		double timeEllapsed = Duration.between(start, end).toMillis() / 1000.0;
+		LOGGER.infov("Changed users sync ended in " + timeEllapsed + " seconds (" + result.getAdded() + " added, " + result.getUpdated() + " updated, " + result.getFailed() + " failed)");
+		
+		return result;
+	}
+	
+	protected SynchronizationResult syncChangeLog(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, DBFederationComponent component) {
+		Instant start = Instant.now();
+		SynchronizationResult result;
+		
+		try (DatabaseConnection connection = component.createConnection()) {
+			DatabaseUserSynchronizer synchronizer = new DatabaseUserSynchronizer(sessionFactory, realmId, model, component.getSyncBatchSize());
+			ChangeLogPoller poller = new ChangeLogPoller(component.createUserRepository(connection), synchronizer,
+				synchronizer.loadState(DBFederationConstants.STATE_CHANGELOG_WATERMARK), new Timestamp(lastSync != null ? lastSync.getTime() : 0), component.getSyncLookback(), component.getSyncDeletionMode());
+			result = poller.poll();
+		}
+		
+		Instant end = Instant.now();
+		double timeEllapsed = Duration.between(start, end).toMillis() / 1000.0;
+		LOGGER.infov("Change log sync ended in " + timeEllapsed + " seconds (" + result.getAdded() + " added, " + result.getUpdated() + " updated, " + result.getRemoved() + " removed, " + result.getFailed() + " failed)");
+		
+		return result;
+	}
+	
+	/**
+	 * Returns the current component of the given model, acquired for the caller, which must
+	 * release it once done so a replaced component can close its resources.
+	 */
+	protected DBFederationComponent acquireComponent(ComponentModel model) {
+		while (true) {
+			DBFederationComponent component = getComponent(model);
+			if (component.acquire()) {
+				return component;
+			}
+		}
+	}
+	
+	protected DBFederationComponent getComponent(ComponentModel model) {
+		List<String> fingerprint = getFingerprint(model);
+		DBFederationComponent component = components.get(model.getId());
+		if (component != null && component.getFingerprint().equals(fingerprint)) {
+			return component;
+		}
+		return components.compute(model.getId(), (String id, DBFederationComponent current) -> {
+			if (current != null) {
+				if (current.getFingerprint().equals(fingerprint)) {
+					return current;
+				}
+				LOGGER.infov("Configuration of component {0} changed, rebuilding its resources", id);
+				current.retire();
+			}
+			return new DBFederationComponent(model, fingerprint);
+		});
+	}
+	
+	private List<String> getFingerprint(ComponentModel model) {
+		List<String> fingerprint = new ArrayList<>(CONFIGURATION.size());
+		for (ProviderConfigProperty property : CONFIGURATION) {
+			fingerprint.add(model.get(property.getName()));
+		}
+		return fingerprint;
 	}
 	
 	private DatabaseConnection createConnection(ComponentModel model, boolean autoCommit) {
@@ -0,0 +1,201 @@
+package org.kewt.databaseprovider.cache;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kewt.databaseprovider.model.DatabaseUser;
+
+/**
+ * Bounded, time limited cache of database users shared by every session of a component
+ * on this node, indexed by ID, username and email.
+ *
+ * Users are copied in and out, so callers may freely modify the instances they get.
+ * A load started before an invalidation is not cached, which keeps a concurrent reader
+ * from putting back a row that a writer just changed.
+ */
+public class DatabaseUserCache implements DatabaseUserCacheMXBean {
+
+	private final int maxSize;
+
+	private final long ttlNanos;
+
+	private final LinkedHashMap<Integer, Entry> byId;
+
+	private final Map<String, Integer> byUsername;
+
+	private final Map<String, Integer> byEmail;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private long generation;
+
+	public DatabaseUserCache(int maxSize, Duration ttl) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+		this.byId = new LinkedHashMap<>(16, 0.75f, true);
+		this.byUsername = new HashMap<>();
+		this.byEmail = new HashMap<>();
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && ttlNanos > 0;
+	}
+
+	/**
+	 * Returns the current generation, to be passed to {@link #put(DatabaseUser, long)}
+	 * once the user loaded after this call is available.
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	public synchronized DatabaseUser getById(Integer id) {
+		return hit(id != null ? byId.get(id) : null);
+	}
+
+	public synchronized DatabaseUser getByUsername(String username) {
+		Integer id = username != null ? byUsername.get(username) : null;
+		return hit(id != null ? byId.get(id) : null);
+	}
+
+	public synchronized DatabaseUser getByEmail(String email) {
+		Integer id = email != null ? byEmail.get(email) : null;
+		return hit(id != null ? byId.get(id) : null);
+	}
+
+	public synchronized void put(DatabaseUser user, long loadGeneration) {
+		if (!isEnabled() || user == null || user.getId() == null || loadGeneration != generation) {
+			return;
+		}
+		remove(user.getId());
+		Entry entry = new Entry(user.copy(), System.nanoTime() + ttlNanos);
+		byId.put(user.getId(), entry);
+		if (user.getUsername() != null) {
+			byUsername.put(user.getUsername(), user.getId());
+		}
+		if (user.getEmail() != null && !user.getEmail().isEmpty()) {
+			byEmail.put(user.getEmail(), user.getId());
+		}
+		while (byId.size() > maxSize) {
+			Iterator<Integer> eldest = byId.keySet().iterator();
+			Integer eldestId = eldest.next();
+			remove(eldestId);
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Drops the cached entries of the given user, looked up by its ID, username and email.
+	 */
+	public synchronized void invalidate(DatabaseUser user) {
+		generation++;
+		if (user.getId() != null) {
+			remove(user.getId());
+		}
+		Integer id = user.getUsername() != null ? byUsername.get(user.getUsername()) : null;
+		if (id != null) {
+			remove(id);
+		}
+		id = user.getEmail() != null ? byEmail.get(user.getEmail()) : null;
+		if (id != null) {
+			remove(id);
+		}
+	}
+
+	public synchronized void invalidate(Integer id) {
+		generation++;
+		remove(id);
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		generation++;
+		byId.clear();
+		byUsername.clear();
+		byEmail.clear();
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return byId.size();
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total > 0 ? (double) hitCount / total : 0;
+	}
+
+	// Private Methods
+
+	private DatabaseUser hit(Entry entry) {
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		if (System.nanoTime() - entry.expiresAt > 0) {
+			remove(entry.user.getId());
+			evictions.increment();
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.user.copy();
+	}
+
+	private void remove(Integer id) {
+		Entry entry = byId.remove(id);
+		if (entry == null) {
+			return;
+		}
+		if (entry.user.getUsername() != null) {
+			byUsername.remove(entry.user.getUsername(), id);
+		}
+		if (entry.user.getEmail() != null) {
+			byEmail.remove(entry.user.getEmail(), id);
+		}
+	}
+
+	private static class Entry {
+
+		private final DatabaseUser user;
+
+		private final long expiresAt;
+
+		Entry(DatabaseUser user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,22 @@
+package org.kewt.databaseprovider.cache;
+
+/**
+ * JMX view of a {@link DatabaseUserCache}, registered per component.
+ */
+public interface DatabaseUserCacheMXBean {
+
+	int getSize();
+
+	int getMaxSize();
+
+	long getHits();
+
+	long getMisses();
+
+	long getEvictions();
+
+	double getHitRatio();
+
+	void invalidateAll();
+
+}
@@ -0,0 +1,70 @@
+package org.kewt.databaseprovider.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller runs the load, callers
+ * arriving while it is in flight wait for it and get a copy of its result instead of
+ * running their own.
+ *
+ * Loads of different kinds may share an instance as long as each key is always loaded
+ * with the same value type, for example by prefixing keys with their kind.
+ */
+public class SingleFlight<K> implements SingleFlightMXBean {
+
+	private final ConcurrentMap<K, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+	private final LongAdder executed = new LongAdder();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	@SuppressWarnings("unchecked")
+	public <V> V execute(K key, Supplier<V> loader, UnaryOperator<V> copy) {
+		CompletableFuture<Object> flight = new CompletableFuture<>();
+		CompletableFuture<Object> running = inFlight.putIfAbsent(key, flight);
+		if (running != null) {
+			coalesced.increment();
+			try {
+				return copy.apply((V) running.join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+		executed.increment();
+		try {
+			V value = loader.get();
+			flight.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	@Override
+	public long getExecuted() {
+		return executed.sum();
+	}
+
+	@Override
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+}
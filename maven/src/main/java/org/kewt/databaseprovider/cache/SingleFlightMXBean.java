@@ -0,0 +1,14 @@
+package org.kewt.databaseprovider.cache;
+
+/**
+ * JMX view of a {@link SingleFlight}, registered per component. Coalesced loads are queries saved.
+ */
+public interface SingleFlightMXBean {
+
+	int getInFlight();
+
+	long getExecuted();
+
+	long getCoalesced();
+
+}
@@ -0,0 +1,264 @@
+package org.kewt.databaseprovider.cache;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kewt.databaseprovider.model.DatabaseUser;
+
+/**
+ * Bloom filter of the lowercased usernames and emails of a component, so lookups of names
+ * that certainly do not exist can be answered without querying the database.
+ *
+ * The filter answers "might exist" until it is built for the first time, and is rebuilt
+ * periodically from a full scan of the users table. Users written or read through the
+ * repository are added as they are seen, including while a rebuild is running.
+ */
+public class UserBloomFilter implements UserBloomFilterMXBean {
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private static final int MIN_EXPECTED_KEYS = 1024;
+
+	private volatile Bits current;
+
+	private volatile Bits building;
+
+	private final LongAdder negatives = new LongAdder();
+
+	private final LongAdder positives = new LongAdder();
+
+	private final AtomicLong rebuilds = new AtomicLong();
+
+	private volatile long lastRebuildAt;
+
+	private volatile long lastRebuildMillis;
+
+	/**
+	 * Returns false only when no user has the given username.
+	 */
+	public boolean mightContainUsername(String username) {
+		return mightContain("u:", username);
+	}
+
+	/**
+	 * Returns false only when no user has the given email.
+	 */
+	public boolean mightContainEmail(String email) {
+		return mightContain("e:", email);
+	}
+
+	public void add(DatabaseUser user) {
+		Bits bits = current;
+		if (bits != null) {
+			bits.add(user);
+		}
+		bits = building;
+		if (bits != null) {
+			bits.add(user);
+		}
+	}
+
+	/**
+	 * Starts building a new filter sized for the given number of users. Users must be passed to
+	 * {@link Rebuild#add(DatabaseUser)} and the filter published or abandoned once every user was
+	 * added. Returns null when another rebuild is running, only one runs at a time.
+	 */
+	public synchronized Rebuild startRebuild(long expectedUsers) {
+		if (building != null) {
+			return null;
+		}
+		Bits bits = new Bits(Math.max(MIN_EXPECTED_KEYS, (expectedUsers + expectedUsers / 4) * 2));
+		building = bits;
+		return new Rebuild(bits, System.nanoTime());
+	}
+
+	@Override
+	public boolean isReady() {
+		return current != null;
+	}
+
+	@Override
+	public long getBitCount() {
+		Bits bits = current;
+		return bits != null ? bits.bitCount : 0;
+	}
+
+	@Override
+	public int getHashCount() {
+		Bits bits = current;
+		return bits != null ? bits.hashCount : 0;
+	}
+
+	@Override
+	public long getKeyCount() {
+		Bits bits = current;
+		return bits != null ? bits.keys.get() : 0;
+	}
+
+	@Override
+	public double getExpectedFalsePositiveRate() {
+		Bits bits = current;
+		if (bits == null) {
+			return 1;
+		}
+		double fill = 1 - Math.exp(-(double) bits.hashCount * bits.keys.get() / bits.bitCount);
+		return Math.pow(fill, bits.hashCount);
+	}
+
+	@Override
+	public long getNegatives() {
+		return negatives.sum();
+	}
+
+	@Override
+	public long getPositives() {
+		return positives.sum();
+	}
+
+	@Override
+	public long getRebuilds() {
+		return rebuilds.get();
+	}
+
+	@Override
+	public long getLastRebuildAt() {
+		return lastRebuildAt;
+	}
+
+	@Override
+	public long getLastRebuildMillis() {
+		return lastRebuildMillis;
+	}
+
+	// Private Methods
+
+	private boolean mightContain(String prefix, String value) {
+		Bits bits = current;
+		if (bits == null || value == null) {
+			return true;
+		}
+		if (bits.mightContain(prefix, value)) {
+			positives.increment();
+			return true;
+		}
+		negatives.increment();
+		return false;
+	}
+
+	public class Rebuild {
+
+		private final Bits bits;
+
+		private final long startedAt;
+
+		Rebuild(Bits bits, long startedAt) {
+			this.bits = bits;
+			this.startedAt = startedAt;
+		}
+
+		public void add(DatabaseUser user) {
+			bits.add(user);
+		}
+
+		public void publish() {
+			synchronized (UserBloomFilter.this) {
+				current = bits;
+				if (building == bits) {
+					building = null;
+				}
+			}
+			rebuilds.incrementAndGet();
+			lastRebuildAt = System.currentTimeMillis();
+			lastRebuildMillis = (System.nanoTime() - startedAt) / 1000000;
+		}
+
+		public void abandon() {
+			synchronized (UserBloomFilter.this) {
+				if (building == bits) {
+					building = null;
+				}
+			}
+		}
+
+	}
+
+	private static class Bits {
+
+		private final AtomicLongArray words;
+
+		private final long bitCount;
+
+		private final int hashCount;
+
+		private final AtomicLong keys = new AtomicLong();
+
+		Bits(long expectedKeys) {
+			long bits = (long) Math.ceil(-expectedKeys * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+			int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) >>> 6);
+			this.words = new AtomicLongArray(wordCount);
+			this.bitCount = (long) wordCount << 6;
+			this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * Math.log(2)));
+		}
+
+		void add(DatabaseUser user) {
+			add("u:", user.getUsername());
+			add("e:", user.getEmail());
+		}
+
+		void add(String prefix, String value) {
+			if (value == null || value.isEmpty()) {
+				return;
+			}
+			long h1 = hash(prefix, value);
+			long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+			boolean changed = false;
+			for (int i = 0; i < hashCount; i++) {
+				long bit = Math.floorMod(h1 + i * h2, bitCount);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long previous = words.getAndAccumulate(word, mask, (long a, long b) -> a | b);
+				changed |= (previous & mask) == 0;
+			}
+			if (changed) {
+				keys.incrementAndGet();
+			}
+		}
+
+		boolean mightContain(String prefix, String value) {
+			long h1 = hash(prefix, value);
+			long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+			for (int i = 0; i < hashCount; i++) {
+				long bit = Math.floorMod(h1 + i * h2, bitCount);
+				if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long hash(String prefix, String value) {
+			String key = value.toLowerCase(Locale.ROOT);
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < prefix.length(); i++) {
+				hash = (hash ^ prefix.charAt(i)) * 0x100000001b3L;
+			}
+			for (int i = 0; i < key.length(); i++) {
+				hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+			}
+			return mix(hash);
+		}
+
+		private static long mix(long hash) {
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.kewt.databaseprovider.cache;
+
+/**
+ * JMX view of a {@link UserBloomFilter}, registered per component.
+ */
+public interface UserBloomFilterMXBean {
+
+	boolean isReady();
+
+	long getBitCount();
+
+	int getHashCount();
+
+	long getKeyCount();
+
+	double getExpectedFalsePositiveRate();
+
+	long getNegatives();
+
+	long getPositives();
+
+	long getRebuilds();
+
+	long getLastRebuildAt();
+
+	long getLastRebuildMillis();
+
+}
@@ -0,0 +1,76 @@
+package org.kewt.databaseprovider.cache;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Time limited cache of user counts by search, shared by every session of a component on
+ * this node, so the admin console listing users does not count them on every page.
+ */
+public class UserCountCache {
+
+	private static final int MAX_SIZE = 256;
+
+	private final long ttlNanos;
+
+	private final LinkedHashMap<String, Entry> counts;
+
+	private long generation;
+
+	public UserCountCache(Duration ttl) {
+		this.ttlNanos = ttl.toNanos();
+		this.counts = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > MAX_SIZE;
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the cached count of the given search, counting it with the given loader when
+	 * missing or expired. Counts loaded across an invalidation are returned but not cached.
+	 */
+	public int get(String key, Supplier<Integer> loader) {
+		long loadGeneration;
+		synchronized (this) {
+			Entry entry = counts.get(key);
+			if (entry != null && System.nanoTime() - entry.expiresAt < 0) {
+				return entry.count;
+			}
+			loadGeneration = generation;
+		}
+		int count = loader.get();
+		synchronized (this) {
+			if (ttlNanos > 0 && loadGeneration == generation) {
+				counts.put(key, new Entry(count, System.nanoTime() + ttlNanos));
+			}
+		}
+		return count;
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		counts.clear();
+	}
+
+	private static class Entry {
+
+		private final int count;
+
+		private final long expiresAt;
+
+		Entry(int count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
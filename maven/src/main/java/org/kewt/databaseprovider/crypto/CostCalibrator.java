@@ -0,0 +1,168 @@
+package org.kewt.databaseprovider.crypto;
+
+import org.keycloak.component.ComponentModel;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * Benchmarks a password hash function on this machine to find the strongest cost whose
+ * slowest verification out of a few samples stays under a target.
+ *
+ * Bcrypt strengths are tried one by one, each doubling the time. Iteration counts are
+ * extrapolated from a measurement at the configured cost and then checked, lowering them
+ * until they fit. A candidate is abandoned as soon as one sample exceeds the target, the
+ * configured cost as soon as one exceeds four times the target.
+ */
+public class CostCalibrator {
+
+	private static final int SAMPLES = 20;
+
+	private static final int MIN_BCRYPT_STRENGTH = 4;
+
+	private static final int MAX_BCRYPT_STRENGTH = 31;
+
+	private static final int ITERATION_ROUNDING = 1000;
+
+	private static final int PROBE_ITERATIONS = 10000;
+
+	private static final int CONFIGURED_LIMIT_FACTOR = 4;
+
+	private static final String SAMPLE_PASSWORD = "calibration-Password-1";
+
+	private final ComponentModel model;
+
+	private final long targetNanos;
+
+	public CostCalibrator(ComponentModel model, long targetMillis) {
+		this.model = model;
+		this.targetNanos = targetMillis * 1000000L;
+	}
+
+	public Result calibrate(PasswordHashFunction function) {
+		int configuredCost = function.getCost(model);
+		double configuredMax = measure(function, configuredCost, targetNanos * CONFIGURED_LIMIT_FACTOR);
+		switch (function) {
+			case BCRYPT:
+				return calibrateStrength(function, configuredCost, configuredMax);
+			case PLAIN_TEXT:
+				return new Result(function, configuredCost, configuredMax, configuredCost, configuredMax);
+			default:
+				return calibrateIterations(function, configuredCost, configuredMax);
+		}
+	}
+
+	// Private Methods
+
+	private Result calibrateStrength(PasswordHashFunction function, int configuredCost, double configuredMax) {
+		int cost = MIN_BCRYPT_STRENGTH;
+		double max = measure(function, cost, targetNanos);
+		while (cost < MAX_BCRYPT_STRENGTH) {
+			double next = measure(function, cost + 1, targetNanos);
+			if (Double.isNaN(next)) {
+				break;
+			}
+			cost++;
+			max = next;
+		}
+		return new Result(function, configuredCost, configuredMax, cost, max);
+	}
+
+	private Result calibrateIterations(PasswordHashFunction function, int configuredCost, double configuredMax) {
+		double nanosPerIteration = measure(function, PROBE_ITERATIONS, Long.MAX_VALUE) * 1000000 / PROBE_ITERATIONS;
+		long estimate = (long) (targetNanos / Math.max(1, nanosPerIteration));
+		int cost = (int) Math.max(ITERATION_ROUNDING, Math.min(Integer.MAX_VALUE / ITERATION_ROUNDING * ITERATION_ROUNDING, estimate / ITERATION_ROUNDING * ITERATION_ROUNDING));
+		double max = measure(function, cost, targetNanos);
+		while (Double.isNaN(max) && cost > ITERATION_ROUNDING) {
+			cost = Math.max(ITERATION_ROUNDING, cost / 10 * 9 / ITERATION_ROUNDING * ITERATION_ROUNDING);
+			max = measure(function, cost, targetNanos);
+		}
+		if (!Double.isNaN(max)) {
+			// the probe runs before the JIT warmed up, refine once from the measured candidate
+			long refined = (long) (cost * (targetNanos / 1e6 / max) * 0.9) / ITERATION_ROUNDING * ITERATION_ROUNDING;
+			if (refined > cost && refined < Integer.MAX_VALUE) {
+				double refinedMax = measure(function, (int) refined, targetNanos);
+				if (!Double.isNaN(refinedMax)) {
+					cost = (int) refined;
+					max = refinedMax;
+				}
+			}
+		}
+		return new Result(function, configuredCost, configuredMax, cost, max);
+	}
+
+	/**
+	 * Returns the slowest of the samples in milliseconds of verifying with the given cost, NaN
+	 * when a sample exceeds limitNanos. With this few samples the maximum is the closest
+	 * estimate of the tail latency, a percentile would need far more verifications.
+	 */
+	private double measure(PasswordHashFunction function, int cost, long limitNanos) {
+		PasswordEncoder encoder = function.getPasswordEncoder(model, cost);
+		String hash = encoder.encode(SAMPLE_PASSWORD);
+		if (!encoder.matches(SAMPLE_PASSWORD, hash)) {
+			throw new IllegalStateException("Unable to verify a " + function.getId() + " hash");
+		}
+		long max = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			long start = System.nanoTime();
+			encoder.matches(SAMPLE_PASSWORD, hash);
+			long elapsed = System.nanoTime() - start;
+			if (elapsed > limitNanos) {
+				return Double.NaN;
+			}
+			max = Math.max(max, elapsed);
+		}
+		return max / 1e6;
+	}
+
+	public static class Result {
+
+		private final PasswordHashFunction function;
+
+		private final int configuredCost;
+
+		private final double configuredMaxMillis;
+
+		private final int proposedCost;
+
+		private final double proposedMaxMillis;
+
+		Result(PasswordHashFunction function, int configuredCost, double configuredMaxMillis, int proposedCost, double proposedMaxMillis) {
+			this.function = function;
+			this.configuredCost = configuredCost;
+			this.configuredMaxMillis = configuredMaxMillis;
+			this.proposedCost = proposedCost;
+			this.proposedMaxMillis = proposedMaxMillis;
+		}
+
+		public PasswordHashFunction getFunction() {
+			return function;
+		}
+
+		public int getConfiguredCost() {
+			return configuredCost;
+		}
+
+		public double getConfiguredMaxMillis() {
+			return configuredMaxMillis;
+		}
+
+		public int getProposedCost() {
+			return proposedCost;
+		}
+
+		public double getProposedMaxMillis() {
+			return proposedMaxMillis;
+		}
+
+		@Override
+		public String toString() {
+			return function.getId() + " cost " + proposedCost + " (max " + format(proposedMaxMillis) + "), configured cost "
+				+ configuredCost + " (max " + format(configuredMaxMillis) + ")";
+		}
+
+		private static String format(double millis) {
+			return Double.isNaN(millis) ? "over target" : String.format("%.1fms", millis);
+		}
+
+	}
+
+}
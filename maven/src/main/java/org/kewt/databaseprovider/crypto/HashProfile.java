@@ -0,0 +1,116 @@
+package org.kewt.databaseprovider.crypto;
+
+import java.util.Objects;
+
+import org.keycloak.component.ComponentModel;
+
+/**
+ * Hash function and cost a stored password was hashed with.
+ *
+ * Bcrypt hashes describe themselves ($2a$, $2b$ or $2y$ followed by the strength). Other
+ * hashes written by this provider are prefixed with {FUNCTION_ID:cost}, and hashes without
+ * a recognized prefix belong to the configured profile.
+ */
+public class HashProfile {
+
+	private final PasswordHashFunction function;
+
+	private final int cost;
+
+	public HashProfile(PasswordHashFunction function, int cost) {
+		this.function = function;
+		this.cost = cost;
+	}
+
+	public static HashProfile configured(PasswordHashFunction function, ComponentModel model) {
+		return new HashProfile(function, function.getCost(model));
+	}
+
+	/**
+	 * Detects the profile of the given stored hash, returns fallback when it has no recognized prefix.
+	 */
+	public static HashProfile detect(String encodedPassword, HashProfile fallback) {
+		if (encodedPassword == null) {
+			return fallback;
+		}
+		if (encodedPassword.length() > 7 && encodedPassword.charAt(0) == '$' && encodedPassword.charAt(1) == '2'
+				&& "aby".indexOf(encodedPassword.charAt(2)) >= 0 && encodedPassword.charAt(3) == '$'
+				&& encodedPassword.charAt(6) == '$') {
+			Integer strength = parseInteger(encodedPassword.substring(4, 6));
+			return strength != null ? new HashProfile(PasswordHashFunction.BCRYPT, strength) : fallback;
+		}
+		if (encodedPassword.startsWith("{")) {
+			int end = encodedPassword.indexOf('}');
+			int separator = encodedPassword.indexOf(':');
+			if (end > 0 && separator > 0 && separator < end) {
+				PasswordHashFunction function = PasswordHashFunction.getById(encodedPassword.substring(1, separator));
+				Integer cost = parseInteger(encodedPassword.substring(separator + 1, end));
+				if (function != null && cost != null) {
+					return new HashProfile(function, cost);
+				}
+			}
+		}
+		return fallback;
+	}
+
+	public PasswordHashFunction getFunction() {
+		return function;
+	}
+
+	public int getCost() {
+		return cost;
+	}
+
+	/**
+	 * Removes the {FUNCTION_ID:cost} prefix of the given stored hash, if any.
+	 */
+	public String strip(String encodedPassword) {
+		String prefix = prefix();
+		return prefix != null && encodedPassword.startsWith(prefix) ? encodedPassword.substring(prefix.length()) : encodedPassword;
+	}
+
+	/**
+	 * Formats a hash computed with this profile to be stored, prefixed unless it is self describing.
+	 */
+	public String format(String hash) {
+		String prefix = prefix();
+		return prefix != null ? prefix + hash : hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof HashProfile)) {
+			return false;
+		}
+		HashProfile profile = (HashProfile) other;
+		return function == profile.function && cost == profile.cost;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(function, cost);
+	}
+
+	@Override
+	public String toString() {
+		return function.getId() + ":" + cost;
+	}
+
+	// Private Methods
+
+	private String prefix() {
+		return function != PasswordHashFunction.BCRYPT ? "{" + function.getId() + ":" + cost + "}" : null;
+	}
+
+	private static Integer parseInteger(String value) {
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
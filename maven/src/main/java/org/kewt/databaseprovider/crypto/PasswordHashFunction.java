@@ -1,6 +1,8 @@
 package org.kewt.databaseprovider.crypto;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -37,20 +39,36 @@ public enum PasswordHashFunction {
 		return this.id;
 	}
 	
-	public String digest(String password, ComponentModel model) {
-		return getPasswordEncoder(model).encode(password);
+	/**
+	 * Whether stored passwords may be rehashed to this function, only the salted and slow ones
+	 * so a login never downgrades a stored hash.
+	 */
+	public boolean isRehashTarget() {
+		switch (this) {
+			case PBKDF2_SHA1:
+			case PBKDF2_SHA256:
+			case PBKDF2_SHA512:
+			case BCRYPT:
+				return true;
+			default:
+				return false;
+		}
 	}
 	
-	public boolean verify(String password, String hash, ComponentModel model) {
-		return getPasswordEncoder(model).matches(password, hash);
+	public PasswordEncoder getPasswordEncoder(ComponentModel model) {
+		return getPasswordEncoder(model, null);
 	}
 	
-	public PasswordEncoder getPasswordEncoder(ComponentModel model) {
+	/**
+	 * Builds the encoder of this function, with the given cost instead of the configured one
+	 * when not null: the strength for bcrypt, the iterations for pbkdf2 and digests.
+	 */
+	public PasswordEncoder getPasswordEncoder(ComponentModel model, Integer cost) {
 		String digestSalt = getString(model, DBFederationConstants.CONFIG_DIGEST_SALT, "");
-		Integer digestIterations = getInteger(model, DBFederationConstants.CONFIG_DIGEST_ITERATIONS, 1);
-		Integer bcryptStrength = getInteger(model, DBFederationConstants.CONFIG_BCRYPT_STRENGTH, 10);
+		Integer digestIterations = cost != null ? cost : getInteger(model, DBFederationConstants.CONFIG_DIGEST_ITERATIONS, 1);
+		Integer bcryptStrength = cost != null ? cost : getInteger(model, DBFederationConstants.CONFIG_BCRYPT_STRENGTH, 10);
 		Integer pbkdf2SaltLength = getInteger(model, DBFederationConstants.CONFIG_PBKDF2_SALT_LENGTH, 16);
-		Integer pbkdf2Iterations = getInteger(model, DBFederationConstants.CONFIG_PBKDF2_ITERATIONS, 300000);
+		Integer pbkdf2Iterations = cost != null ? cost : getInteger(model, DBFederationConstants.CONFIG_PBKDF2_ITERATIONS, 300000);
 		switch (this) {
 			case PBKDF2_SHA1:
 				return new Pbkdf2PasswordEncoder("pepper", pbkdf2SaltLength, pbkdf2Iterations, SecretKeyFactoryAlgorithm.PBKDF2WithHmacSHA1);
@@ -75,6 +93,27 @@ public enum PasswordHashFunction {
 		}
 	}
 	
+	/**
+	 * Returns the configured cost of this function, 0 when it has none.
+	 */
+	public Integer getCost(ComponentModel model) {
+		switch (this) {
+			case PBKDF2_SHA1:
+			case PBKDF2_SHA256:
+			case PBKDF2_SHA512:
+				return getInteger(model, DBFederationConstants.CONFIG_PBKDF2_ITERATIONS, 300000);
+			case BCRYPT:
+				return getInteger(model, DBFederationConstants.CONFIG_BCRYPT_STRENGTH, 10);
+			case MD5:
+			case SHA1:
+			case SHA256:
+			case SHA512:
+				return getInteger(model, DBFederationConstants.CONFIG_DIGEST_ITERATIONS, 1);
+			default:
+				return 0;
+		}
+	}
+	
 	public static Map<String, PasswordHashFunction> getMappingById() {
 		if (BY_ID == null) {
 			BY_ID = new TreeMap<>();
@@ -93,6 +132,16 @@ public enum PasswordHashFunction {
 		return getMappingById().keySet();
 	}
 	
+	public static List<String> rehashTargetIds() {
+		List<String> ids = new ArrayList<>();
+		for (PasswordHashFunction function : getMappingById().values()) {
+			if (function.isRehashTarget()) {
+				ids.add(function.getId());
+			}
+		}
+		return ids;
+	}
+	
 	// Private Methods
 	
 	private String getString(ComponentModel model, String key, String defaultValue) {
@@ -100,7 +149,8 @@ public enum PasswordHashFunction {
 	}
 	
 	private Integer getInteger(ComponentModel model, String key, Integer defaultValue) {
-		return Integer.valueOf(model.get(key, defaultValue.toString()));
+		String value = model.get(key);
+		return value != null && !value.trim().isEmpty() ? Integer.valueOf(value.trim()) : defaultValue;
 	}
 
 }
@@ -0,0 +1,14 @@
+package org.kewt.databaseprovider.crypto;
+
+@SuppressWarnings("serial")
+public class PasswordVerificationException extends RuntimeException {
+
+	public PasswordVerificationException(String message) {
+		super(message);
+	}
+	
+	public PasswordVerificationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.kewt.databaseprovider.crypto;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * Runs password verifications of a component on a dedicated, bounded set of threads, so a
+ * burst of logins cannot take every core of the node.
+ *
+ * Verifications wait in a bounded queue. When the queue is full, or when a queued verification
+ * could not start within the wait timeout, a {@link PasswordVerificationException} is thrown
+ * instead of a failed verification, so the user is not penalized for the overload. The caller
+ * gives up as soon as the timeout elapses and the abandoned verification leaves the queue.
+ * With a concurrency of 0 verifications run on the calling thread.
+ */
+public class PasswordVerifier implements PasswordVerifierMXBean, Closeable {
+
+	private static final int QUEUED = 0;
+
+	private static final int STARTED = 1;
+
+	private static final int ABANDONED = 2;
+
+	private final int concurrency;
+
+	private final int queueCapacity;
+
+	private final long waitTimeoutNanos;
+
+	private final ThreadPoolExecutor executor;
+
+	private final LongAdder verifications = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final LongAdder timedOut = new LongAdder();
+
+	private final LongAdder waitNanos = new LongAdder();
+
+	private final LongAdder verifyNanos = new LongAdder();
+
+	private final LongAccumulator maxVerifyNanos = new LongAccumulator(Math::max, 0);
+
+	public PasswordVerifier(String name, int concurrency, int queueCapacity, Duration waitTimeout) {
+		this.concurrency = Math.max(0, concurrency);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.waitTimeoutNanos = waitTimeout.toNanos();
+		if (this.concurrency > 0) {
+			AtomicInteger threads = new AtomicInteger();
+			this.executor = new ThreadPoolExecutor(this.concurrency, this.concurrency, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(this.queueCapacity), (Runnable runnable) -> {
+					Thread thread = new Thread(runnable, "db-federation-verify-" + name + "-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			this.executor.allowCoreThreadTimeOut(true);
+		} else {
+			this.executor = null;
+		}
+	}
+
+	public boolean verify(PasswordEncoder encoder, CharSequence rawPassword, String encodedPassword) {
+		if (executor == null) {
+			return timedMatches(encoder, rawPassword, encodedPassword);
+		}
+		long submittedAt = System.nanoTime();
+		AtomicInteger state = new AtomicInteger(QUEUED);
+		Future<Boolean> result;
+		try {
+			result = executor.submit(() -> {
+				if (!state.compareAndSet(QUEUED, STARTED)) {
+					return false;
+				}
+				waitNanos.add(System.nanoTime() - submittedAt);
+				return timedMatches(encoder, rawPassword, encodedPassword);
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			throw new PasswordVerificationException("Password verification queue is full (" + queueCapacity + " waiting)", e);
+		}
+		try {
+			if (waitTimeoutNanos <= 0) {
+				return result.get();
+			}
+			try {
+				return result.get(waitTimeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				if (!state.compareAndSet(QUEUED, ABANDONED)) {
+					// started just before the deadline, it only takes the verification time to finish
+					return result.get();
+				}
+				result.cancel(false);
+				executor.remove((Runnable) result);
+				timedOut.increment();
+				waitNanos.add(waitTimeoutNanos);
+				throw new PasswordVerificationException("Password verification did not start within " + TimeUnit.NANOSECONDS.toMillis(waitTimeoutNanos) + "ms", e);
+			}
+		} catch (InterruptedException e) {
+			state.set(ABANDONED);
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new PasswordVerificationException("Interrupted waiting for password verification", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new PasswordVerificationException("Password verification failed", e.getCause());
+		}
+	}
+
+	@Override
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return executor != null ? queueCapacity : 0;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return executor != null ? executor.getQueue().size() : 0;
+	}
+
+	@Override
+	public int getActiveCount() {
+		return executor != null ? executor.getActiveCount() : 0;
+	}
+
+	@Override
+	public long getVerifications() {
+		return verifications.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	@Override
+	public double getAverageWaitMillis() {
+		long count = verifications.sum() + timedOut.sum();
+		return count > 0 ? waitNanos.sum() / 1e6 / count : 0;
+	}
+
+	@Override
+	public double getAverageVerifyMillis() {
+		long count = verifications.sum();
+		return count > 0 ? verifyNanos.sum() / 1e6 / count : 0;
+	}
+
+	@Override
+	public long getMaxVerifyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxVerifyNanos.get());
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	// Private Methods
+
+	private boolean timedMatches(PasswordEncoder encoder, CharSequence rawPassword, String encodedPassword) {
+		long start = System.nanoTime();
+		try {
+			return encoder.matches(rawPassword, encodedPassword);
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			verifications.increment();
+			verifyNanos.add(elapsed);
+			maxVerifyNanos.accumulate(elapsed);
+		}
+	}
+
+}
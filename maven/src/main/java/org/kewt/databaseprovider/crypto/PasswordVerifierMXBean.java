@@ -0,0 +1,28 @@
+package org.kewt.databaseprovider.crypto;
+
+/**
+ * JMX view of a {@link PasswordVerifier}, registered per component.
+ */
+public interface PasswordVerifierMXBean {
+
+	int getConcurrency();
+
+	int getQueueCapacity();
+
+	int getQueueDepth();
+
+	int getActiveCount();
+
+	long getVerifications();
+
+	long getRejected();
+
+	long getTimedOut();
+
+	double getAverageWaitMillis();
+
+	double getAverageVerifyMillis();
+
+	long getMaxVerifyMillis();
+
+}
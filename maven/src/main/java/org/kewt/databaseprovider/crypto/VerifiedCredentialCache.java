@@ -0,0 +1,114 @@
+package org.kewt.databaseprovider.crypto;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers recent successful password verifications, so repeated logins with the same
+ * password skip the slow hash function until the entry expires.
+ *
+ * Passwords are never kept, only an HMAC of them under a key generated on each node start.
+ * An entry only matches while the stored hash it was verified against is unchanged.
+ */
+public class VerifiedCredentialCache {
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final int maxSize;
+
+	private final long ttlNanos;
+
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final ThreadLocal<Mac> mac;
+
+	public VerifiedCredentialCache(int maxSize, Duration ttl) {
+		this.maxSize = maxSize;
+		this.ttlNanos = ttl.toNanos();
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > VerifiedCredentialCache.this.maxSize;
+			}
+
+		};
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		SecretKeySpec secretKey = new SecretKeySpec(key, MAC_ALGORITHM);
+		this.mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance(MAC_ALGORITHM);
+				mac.init(secretKey);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && ttlNanos > 0;
+	}
+
+	public boolean matches(String userId, CharSequence rawPassword, String encodedPassword) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(userId);
+		}
+		if (entry == null || System.nanoTime() - entry.expiresAt > 0 || !entry.encodedPassword.equals(encodedPassword)) {
+			return false;
+		}
+		return MessageDigest.isEqual(entry.passwordMac, mac(rawPassword));
+	}
+
+	/**
+	 * Records a successful verification of rawPassword against encodedPassword.
+	 */
+	public void put(String userId, CharSequence rawPassword, String encodedPassword) {
+		Entry entry = new Entry(mac(rawPassword), encodedPassword, System.nanoTime() + ttlNanos);
+		synchronized (this) {
+			entries.put(userId, entry);
+		}
+	}
+
+	public synchronized void invalidate(String userId) {
+		entries.remove(userId);
+	}
+
+	// Private Methods
+
+	private byte[] mac(CharSequence rawPassword) {
+		Mac mac = this.mac.get();
+		mac.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(rawPassword)));
+		return mac.doFinal();
+	}
+
+	private static class Entry {
+
+		private final byte[] passwordMac;
+
+		private final String encodedPassword;
+
+		private final long expiresAt;
+
+		Entry(byte[] passwordMac, String encodedPassword, long expiresAt) {
+			this.passwordMac = passwordMac;
+			this.encodedPassword = encodedPassword;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
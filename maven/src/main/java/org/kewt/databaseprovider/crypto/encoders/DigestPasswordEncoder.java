@@ -1,22 +1,33 @@
 package org.kewt.databaseprovider.crypto.encoders;
 
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import org.springframework.security.crypto.codec.Hex;
 import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
+/**
+ * Iterated salted digest encoder. Instances are thread safe, each thread digests
+ * with its own {@link MessageDigest} and buffers.
+ *
+ * Every iteration after the first digests the lowercase hex encoding of the previous
+ * digest. The hex is written into a reusable byte array, so iterating allocates nothing.
+ */
 public class DigestPasswordEncoder implements PasswordEncoder {
 
-	private MessageDigest digester;
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private ThreadLocal<Digester> digester;
 	
 	private String fixedSalt;
 	
 	private Integer iterations;
 	
 	public DigestPasswordEncoder(String algorithm, String fixedSalt, Integer iterations) {
-		this.digester = createDigester(algorithm);
+		createDigester(algorithm); // fails fast on unknown algorithms
+		this.digester = ThreadLocal.withInitial(() -> new Digester(createDigester(algorithm)));
 		this.fixedSalt = fixedSalt != null ? fixedSalt : "";
 		this.iterations = iterations != null ? iterations : 1;
 	}
@@ -25,14 +36,19 @@ public class DigestPasswordEncoder implements PasswordEncoder {
 
 	@Override
 	public String encode(CharSequence rawPassword) {
-		return digest(fixedSalt, rawPassword);
+		Digester digester = this.digester.get();
+		digest(digester, fixedSalt, rawPassword);
+		return new String(digester.hex, StandardCharsets.US_ASCII);
 	}
 
 	@Override
 	public boolean matches(CharSequence rawPassword, String encodedPassword) {
-		String salt = extractSalt(encodedPassword);
-		String rawPasswordEncoded = digest(salt, rawPassword);
-		return passwordEquals(encodedPassword.toString(), rawPasswordEncoded);
+		if (encodedPassword == null) {
+			return false;
+		}
+		Digester digester = this.digester.get();
+		digest(digester, extractSalt(encodedPassword), rawPassword);
+		return hexEquals(encodedPassword, digester.hex);
 	}
 	
 	// Private Methods
@@ -50,28 +66,62 @@ public class DigestPasswordEncoder implements PasswordEncoder {
 		return fixedSalt;
 	}
 	
-	private String digest(String salt, CharSequence rawPassword) {
+	/**
+	 * Leaves the lowercase hex encoding of the final digest in the hex buffer of the digester.
+	 */
+	private void digest(Digester digester, String salt, CharSequence rawPassword) {
 		String saltedPassword = (salt != null ? salt : "") + rawPassword;
-		byte[] digest = this.digester.digest(Utf8.encode(saltedPassword));
-		for (int i = 1; i < iterations; i++) {
-			digest = this.digester.digest(Utf8.encode(encode(digest)));
+		MessageDigest md = digester.md;
+		md.update(Utf8.encode(saltedPassword));
+		try {
+			md.digest(digester.digest, 0, digester.digest.length);
+			for (int i = 1; i < iterations; i++) {
+				encodeHex(digester.digest, digester.hex);
+				md.update(digester.hex);
+				md.digest(digester.digest, 0, digester.digest.length);
+			}
+		} catch (DigestException e) {
+			md.reset();
+			throw new IllegalStateException(e);
 		}
-		String encoded = encode(digest);
-		return encoded;
+		encodeHex(digester.digest, digester.hex);
 	}
 	
-	private String encode(byte[] digest) {
-		return new String(Hex.encode(digest));
+	private static void encodeHex(byte[] bytes, byte[] hex) {
+		for (int i = 0, j = 0; i < bytes.length; i++) {
+			hex[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+			hex[j++] = HEX_DIGITS[bytes[i] & 0x0f];
+		}
 	}
 	
-	private boolean passwordEquals(String expected, String actual) {
-		byte[] expectedBytes = bytesUtf8(expected);
-		byte[] actualBytes = bytesUtf8(actual);
-		return MessageDigest.isEqual(expectedBytes, actualBytes);
+	/**
+	 * Compares in time independent of where the first difference is.
+	 */
+	private static boolean hexEquals(String expected, byte[] actual) {
+		if (expected.length() != actual.length) {
+			return false;
+		}
+		int difference = 0;
+		for (int i = 0; i < actual.length; i++) {
+			difference |= expected.charAt(i) ^ actual[i];
+		}
+		return difference == 0;
 	}
-	
-	private static byte[] bytesUtf8(String s) {
-		return (s != null) ? Utf8.encode(s) : null;
+
+	private static class Digester {
+
+		private final MessageDigest md;
+
+		private final byte[] digest;
+
+		private final byte[] hex;
+
+		Digester(MessageDigest md) {
+			this.md = md;
+			this.digest = new byte[md.getDigestLength()];
+			this.hex = new byte[digest.length * 2];
+		}
+
 	}
 
 }
@@ -6,52 +6,93 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.kewt.databaseprovider.database.callbacks.QueryPreparer;
 import org.kewt.databaseprovider.database.callbacks.QueryReader;
 
 public class DatabaseConnection implements Closeable {
-	
-	private final Connection connection;
-	
+
+	private final DatabaseConnectionPool pool;
+
+	private final boolean autoCommit;
+
+	private Connection connection;
+
+	private PooledConnection pooled;
+
+	private StatementCache statements;
+
+	private int streams;
+
 	public DatabaseConnection(String connectionUrl, String user, String password) {
 		this(connectionUrl, user, password, true);
 	}
-	
+
 	public DatabaseConnection(String connectionUrl, String user, String password, boolean autoCommit) {
+		this.pool = null;
+		this.autoCommit = autoCommit;
 		try {
 			this.connection = DriverManager.getConnection(connectionUrl, user, password);
 			this.connection.setAutoCommit(autoCommit);
+			this.statements = new StatementCache();
 		} catch (SQLException e) {
 			throw new DatabaseException(e.getMessage(), e);
 		}
 	}
-	
+
+	/**
+	 * Creates a connection backed by the given pool. In auto commit mode a physical
+	 * connection is borrowed for each statement, otherwise it is held until the
+	 * transaction ends through {@link #commit()}, {@link #rollback()} or {@link #close()}.
+	 */
+	public DatabaseConnection(DatabaseConnectionPool pool, boolean autoCommit) {
+		this.pool = pool;
+		this.autoCommit = autoCommit;
+	}
+
 	public void commit() {
+		if (pool != null && pooled == null) {
+			return;
+		}
+		boolean broken = false;
 		try {
 			connection.commit();
 		} catch (SQLException e) {
+			broken = DatabaseConnectionPool.isConnectionError(e);
 			throw new DatabaseException(e);
+		} finally {
+			release(true, broken);
 		}
 	}
-	
+
 	public void rollback() {
+		if (pool != null && pooled == null) {
+			return;
+		}
+		boolean broken = false;
 		try {
 			connection.rollback();
 		} catch (SQLException e) {
+			broken = DatabaseConnectionPool.isConnectionError(e);
 			throw new DatabaseException(e);
+		} finally {
+			release(true, broken);
 		}
 	}
-	
+
 	public <T> T executeAndReturnGeneratedKeys(String sql, QueryPreparer prepare, QueryReader<T> read) {
-		PreparedStatement statement = null;
 		ResultSet rs = null;
+		SQLException failure = null;
 
 		try {
-			statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			PreparedStatement statement = prepare(sql, true);
 			prepare.onPrepare(statement);
 			statement.executeUpdate();
 			rs = statement.getGeneratedKeys();
@@ -61,6 +102,7 @@ public class DatabaseConnection implements Closeable {
 				return null;
 			}
 		} catch (SQLException e) {
+			failure = e;
 			throw new DatabaseException(e);
 		} finally {
 			if (rs != null) {
@@ -68,36 +110,29 @@ public class DatabaseConnection implements Closeable {
 					rs.close();
 				} catch (Exception e) { }
 			}
-			if (statement != null) {
-				try {
-					statement.close();
-				} catch (Exception e) { }
-			}
+			done(sql, true, failure);
 		}
 	}
-	
+
 	public int execute(String sql, QueryPreparer prepare) {
-		PreparedStatement statement = null;
+		SQLException failure = null;
 		try {
-			statement = connection.prepareStatement(sql);
+			PreparedStatement statement = prepare(sql, false);
 			prepare.onPrepare(statement);
 			return statement.executeUpdate();
 		} catch (SQLException e) {
+			failure = e;
 			throw new DatabaseException(e);
 		} finally {
-			if (statement != null) {
-				try {
-					statement.close();
-				} catch (Exception e) { }
-			}
+			done(sql, false, failure);
 		}
 	}
 
 	public <T> T querySingle(String sql, QueryPreparer prepare, QueryReader<T> read) {
-		PreparedStatement statement = null;
 		ResultSet rs = null;
+		SQLException failure = null;
 		try {
-			statement = connection.prepareStatement(sql);
+			PreparedStatement statement = prepare(sql, false);
 			if (prepare != null) {
 				prepare.onPrepare(statement);
 			}
@@ -109,6 +144,7 @@ public class DatabaseConnection implements Closeable {
 				return null;
 			}
 		} catch (SQLException e) {
+			failure = e;
 			throw new DatabaseException(e);
 		} finally {
 			if (rs != null) {
@@ -116,19 +152,15 @@ public class DatabaseConnection implements Closeable {
 					rs.close();
 				} catch (Exception e) { }
 			}
-			if (statement != null) {
-				try {
-					statement.close();
-				} catch (Exception e) { }
-			}
+			done(sql, false, failure);
 		}
 	}
-	
+
 	public <T> List<T> queryList(String sql, QueryPreparer prepare, QueryReader<T> read) {
-		PreparedStatement statement = null;
 		ResultSet rs = null;
+		SQLException failure = null;
 		try {
-			statement = connection.prepareStatement(sql);
+			PreparedStatement statement = prepare(sql, false);
 			if (prepare != null) {
 				prepare.onPrepare(statement);
 			}
@@ -143,6 +175,7 @@ public class DatabaseConnection implements Closeable {
 			}
 			return result;
 		} catch (SQLException e) {
+			failure = e;
 			throw new DatabaseException(e);
 		} finally {
 			if (rs != null) {
@@ -150,21 +183,185 @@ public class DatabaseConnection implements Closeable {
 					rs.close();
 				} catch (Exception e) { }
 			}
-			if (statement != null) {
-				try {
-					statement.close();
-				} catch (Exception e) { }
+			done(sql, false, failure);
+		}
+	}
+
+	/**
+	 * Runs a query whose rows are fetched from the server in batches of fetchSize while the
+	 * returned stream is consumed, using a server side cursor where the dialect needs one.
+	 * The physical connection is held until the stream is closed, so callers must close it.
+	 */
+	public <T> Stream<T> queryStream(String sql, QueryPreparer prepare, QueryReader<T> read, int fetchSize) {
+		ResultSetSpliterator<T> spliterator = new ResultSetSpliterator<>(read);
+		try {
+			Connection connection = acquire();
+			streams++;
+			spliterator.connection = connection;
+			DatabaseDialect dialect = DatabaseDialect.fromConnection(connection);
+			if (dialect.isCursorRequiringTransaction() && connection.getAutoCommit()) {
+				connection.setAutoCommit(false);
+				spliterator.restoreAutoCommit = true;
 			}
+			spliterator.statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			dialect.configureStreaming(spliterator.statement, fetchSize);
+			if (prepare != null) {
+				prepare.onPrepare(spliterator.statement);
+			}
+			spliterator.rs = spliterator.statement.executeQuery();
+		} catch (SQLException e) {
+			spliterator.broken = DatabaseConnectionPool.isConnectionError(e);
+			spliterator.close();
+			throw new DatabaseException(e);
+		} catch (RuntimeException e) {
+			spliterator.close();
+			throw e;
 		}
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
 	}
-	
+
 	@Override
 	public void close() {
+		if (pool != null) {
+			if (pooled != null) {
+				boolean broken = false;
+				try {
+					if (!autoCommit) {
+						connection.rollback();
+					}
+				} catch (SQLException e) {
+					broken = true;
+				} finally {
+					release(true, broken);
+				}
+			}
+			return;
+		}
 		try {
+			statements.clear();
 			connection.close();
 		} catch (Exception e) {
 			throw new DatabaseException(e);
 		}
 	}
 
+	// Private Methods
+
+	private PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+		Connection connection = acquire();
+		return statements.prepare(connection, sql, returnGeneratedKeys);
+	}
+
+	private Connection acquire() throws SQLException {
+		if (pool == null || pooled != null) {
+			return connection;
+		}
+		pooled = pool.borrow();
+		connection = pooled.getConnection();
+		statements = pooled.getStatements();
+		try {
+			if (connection.getAutoCommit() != autoCommit) {
+				connection.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			release(true, true);
+			throw e;
+		}
+		return connection;
+	}
+
+	private void done(String sql, boolean returnGeneratedKeys, SQLException failure) {
+		boolean broken = false;
+		if (failure != null) {
+			broken = DatabaseConnectionPool.isConnectionError(failure);
+			if (statements != null) {
+				statements.evict(sql, returnGeneratedKeys);
+			}
+		}
+		release(false, broken);
+	}
+
+	private void release(boolean endOfTransaction, boolean broken) {
+		if (pooled == null || !(broken || (streams == 0 && (autoCommit || endOfTransaction)))) {
+			return;
+		}
+		PooledConnection released = pooled;
+		pooled = null;
+		connection = null;
+		statements = null;
+		pool.release(released, broken);
+	}
+
+	private class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+		private final QueryReader<T> read;
+
+		private Connection connection;
+
+		private PreparedStatement statement;
+
+		private ResultSet rs;
+
+		private boolean restoreAutoCommit;
+
+		private boolean broken;
+
+		private boolean closed;
+
+		ResultSetSpliterator(QueryReader<T> read) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.read = read;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (closed) {
+				return false;
+			}
+			try {
+				while (rs.next()) {
+					T row = read.onRowFound(rs);
+					if (row != null) {
+						action.accept(row);
+						return true;
+					}
+				}
+				return false;
+			} catch (SQLException e) {
+				broken = DatabaseConnectionPool.isConnectionError(e);
+				throw new DatabaseException(e);
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (Exception e) { }
+			}
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (Exception e) { }
+			}
+			if (restoreAutoCommit && !broken) {
+				try {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				} catch (SQLException e) {
+					broken = true;
+				}
+			}
+			if (connection != null) {
+				streams--;
+				release(false, broken);
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,219 @@
+package org.kewt.databaseprovider.database;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Bounded pool of physical JDBC connections for a single federation component.
+ *
+ * Idle connections are reused most-recently-used first, validated when they sat
+ * idle for a while, evicted after the idle timeout and connections held for longer
+ * than the leak detection threshold are reported with the stack trace of the borrower.
+ * Capturing that trace costs a stack walk on every borrow, so detection is meant to be
+ * enabled while hunting a leak only.
+ */
+public class DatabaseConnectionPool implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(DatabaseConnectionPool.class);
+
+	private static final long VALIDATION_BYPASS_MILLIS = 500;
+
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	private static final long HOUSEKEEPING_PERIOD_MILLIS = 30000;
+
+	private final String name;
+
+	private final String connectionUrl;
+
+	private final String user;
+
+	private final String password;
+
+	private final int maxSize;
+
+	private final long idleTimeoutMillis;
+
+	private final long connectionTimeoutMillis;
+
+	private final long leakDetectionThresholdMillis;
+
+	private final Semaphore permits;
+
+	private final Deque<PooledConnection> idle;
+
+	private final Set<PooledConnection> borrowed;
+
+	private final ScheduledExecutorService housekeeper;
+
+	private volatile boolean closed;
+
+	public DatabaseConnectionPool(String name, String connectionUrl, String user, String password, int maxSize,
+			Duration idleTimeout, Duration connectionTimeout, Duration leakDetectionThreshold) {
+		this.name = name;
+		this.connectionUrl = connectionUrl;
+		this.user = user;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.idleTimeoutMillis = idleTimeout.toMillis();
+		this.connectionTimeoutMillis = connectionTimeout.toMillis();
+		this.leakDetectionThresholdMillis = leakDetectionThreshold.toMillis();
+		this.permits = new Semaphore(this.maxSize, true);
+		this.idle = new ConcurrentLinkedDeque<>();
+		this.borrowed = ConcurrentHashMap.newKeySet();
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+			Thread thread = new Thread(runnable, "db-federation-pool-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.min(HOUSEKEEPING_PERIOD_MILLIS, Math.max(1000, idleTimeoutMillis / 2));
+		this.housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public PooledConnection borrow() {
+		if (closed) {
+			throw new DatabaseException("Connection pool " + name + " is closed");
+		}
+		try {
+			if (!permits.tryAcquire(connectionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new DatabaseException("Timed out waiting for a connection from pool " + name + " (" + maxSize + " in use)");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseException(e);
+		}
+		try {
+			PooledConnection pooled;
+			while ((pooled = idle.pollFirst()) != null) {
+				if (isUsable(pooled)) {
+					break;
+				}
+				pooled.closeQuietly();
+			}
+			if (pooled == null) {
+				pooled = open();
+			}
+			pooled.onBorrow(leakDetectionThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null);
+			borrowed.add(pooled);
+			return pooled;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public void release(PooledConnection pooled, boolean broken) {
+		if (!borrowed.remove(pooled)) {
+			return;
+		}
+		try {
+			if (broken || closed || pooled.getConnection().isClosed()) {
+				pooled.closeQuietly();
+			} else {
+				pooled.onReturn();
+				idle.offerFirst(pooled);
+			}
+		} catch (SQLException e) {
+			pooled.closeQuietly();
+		} finally {
+			permits.release();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getActiveCount() {
+		return borrowed.size();
+	}
+
+	public static boolean isConnectionError(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("08");
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		housekeeper.shutdownNow();
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			pooled.closeQuietly();
+		}
+		if (!borrowed.isEmpty()) {
+			LOGGER.debugv("Pool {0} closed with {1} connections in use, they will be closed on release", name, borrowed.size());
+		}
+	}
+
+	// Private Methods
+
+	private PooledConnection open() {
+		try {
+			Connection connection = DriverManager.getConnection(connectionUrl, user, password);
+			LOGGER.debugv("Pool {0} opened a new connection", name);
+			return new PooledConnection(connection);
+		} catch (SQLException e) {
+			throw new DatabaseException(e.getMessage(), e);
+		}
+	}
+
+	private boolean isUsable(PooledConnection pooled) {
+		long idleMillis = System.currentTimeMillis() - pooled.getLastUsedAt();
+		if (idleTimeoutMillis > 0 && idleMillis > idleTimeoutMillis) {
+			return false;
+		}
+		if (idleMillis < VALIDATION_BYPASS_MILLIS) {
+			return true;
+		}
+		try {
+			return pooled.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void housekeep() {
+		try {
+			long now = System.currentTimeMillis();
+			if (idleTimeoutMillis > 0) {
+				Iterator<PooledConnection> iterator = idle.descendingIterator();
+				while (iterator.hasNext()) {
+					PooledConnection pooled = iterator.next();
+					if (now - pooled.getLastUsedAt() > idleTimeoutMillis && idle.remove(pooled)) {
+						LOGGER.debugv("Pool {0} evicting idle connection", name);
+						pooled.closeQuietly();
+					}
+				}
+			}
+			if (leakDetectionThresholdMillis > 0) {
+				for (PooledConnection pooled : borrowed) {
+					if (!pooled.isLeakReported() && now - pooled.getBorrowedAt() > leakDetectionThresholdMillis) {
+						pooled.setLeakReported(true);
+						LOGGER.warnv(pooled.getBorrowTrace(), "Pool {0} connection held for more than {1} ms, possible leak", name, leakDetectionThresholdMillis);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			LOGGER.error("Pool " + name + " housekeeping failed", e);
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.kewt.databaseprovider.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public enum DatabaseDialect {
+
+	POSTGRESQL,
+	MYSQL,
+	H2,
+	GENERIC;
+
+	public static DatabaseDialect fromUrl(String connectionUrl) {
+		if (connectionUrl == null) {
+			return GENERIC;
+		}
+		if (connectionUrl.startsWith("jdbc:postgresql:")) {
+			return POSTGRESQL;
+		}
+		if (connectionUrl.startsWith("jdbc:mariadb:") || connectionUrl.startsWith("jdbc:mysql:")) {
+			return MYSQL;
+		}
+		if (connectionUrl.startsWith("jdbc:h2:")) {
+			return H2;
+		}
+		return GENERIC;
+	}
+
+	public static DatabaseDialect fromConnection(Connection connection) throws SQLException {
+		String product = connection.getMetaData().getDatabaseProductName();
+		if ("PostgreSQL".equalsIgnoreCase(product)) {
+			return POSTGRESQL;
+		}
+		if ("MariaDB".equalsIgnoreCase(product) || "MySQL".equalsIgnoreCase(product)) {
+			return MYSQL;
+		}
+		if ("H2".equalsIgnoreCase(product)) {
+			return H2;
+		}
+		return GENERIC;
+	}
+
+	/**
+	 * PostgreSQL only opens a server side cursor for a fetch size when the
+	 * connection is not in auto commit mode, otherwise the whole result is buffered.
+	 */
+	public boolean isCursorRequiringTransaction() {
+		return this == POSTGRESQL;
+	}
+
+	/**
+	 * Configures a forward only statement so rows are fetched from the server in
+	 * batches of fetchSize instead of being buffered in memory all at once.
+	 */
+	public void configureStreaming(Statement statement, int fetchSize) throws SQLException {
+		if (this == MYSQL && statement.getConnection().getMetaData().getDriverName().startsWith("MySQL")) {
+			// MySQL Connector/J only streams row by row with this marker value
+			statement.setFetchSize(Integer.MIN_VALUE);
+		} else {
+			statement.setFetchSize(fetchSize);
+		}
+	}
+
+	/**
+	 * Returns a query of the row count estimate kept by the database statistics for a table,
+	 * whose parameters are the schema, null for the current one, and the table name. Returns
+	 * null when the database keeps no estimate that is cheap to read.
+	 */
+	public String getRowEstimateQuery() {
+		switch (this) {
+			case POSTGRESQL:
+				return "select reltuples::bigint from pg_class where oid = to_regclass(coalesce(? || '.', '') || ?)";
+			case MYSQL:
+				return "select table_rows from information_schema.tables where table_schema = coalesce(?, database()) and table_name = ?";
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Whether a (a, b) > (?, ?) comparison is supported, which lets a keyset continue on a
+	 * composite index with a single range instead of an or of two conditions.
+	 */
+	public boolean isRowValueComparisonSupported() {
+		return this == POSTGRESQL || this == MYSQL || this == H2;
+	}
+
+	/**
+	 * PostgreSQL takes a whole list of IDs as a single array parameter with = any(?),
+	 * so a lookup of many rows is one statement whatever the number of IDs.
+	 */
+	public boolean isArrayParameterSupported() {
+		return this == POSTGRESQL;
+	}
+
+	/**
+	 * Returns the largest number of IDs looked up by one statement, keeping in lists under the
+	 * limits of the databases that have one and the array parameters of a reasonable size.
+	 */
+	public int getIdChunkSize() {
+		switch (this) {
+			case POSTGRESQL:
+				return 5000;
+			case MYSQL:
+			case H2:
+				return 1000;
+			default:
+				return 500;
+		}
+	}
+
+}
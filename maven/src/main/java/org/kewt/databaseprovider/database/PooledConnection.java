@@ -0,0 +1,78 @@
+package org.kewt.databaseprovider.database;
+
+import java.sql.Connection;
+
+public class PooledConnection {
+
+	private final Connection connection;
+
+	private final StatementCache statements;
+
+	private final long createdAt;
+
+	private volatile long lastUsedAt;
+
+	private volatile long borrowedAt;
+
+	private volatile Throwable borrowTrace;
+
+	private volatile boolean leakReported;
+
+	PooledConnection(Connection connection) {
+		this.connection = connection;
+		this.statements = new StatementCache();
+		this.createdAt = System.currentTimeMillis();
+		this.lastUsedAt = this.createdAt;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	public StatementCache getStatements() {
+		return statements;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public long getLastUsedAt() {
+		return lastUsedAt;
+	}
+
+	public long getBorrowedAt() {
+		return borrowedAt;
+	}
+
+	Throwable getBorrowTrace() {
+		return borrowTrace;
+	}
+
+	boolean isLeakReported() {
+		return leakReported;
+	}
+
+	void setLeakReported(boolean leakReported) {
+		this.leakReported = leakReported;
+	}
+
+	void onBorrow(Throwable trace) {
+		this.borrowedAt = System.currentTimeMillis();
+		this.borrowTrace = trace;
+		this.leakReported = false;
+	}
+
+	void onReturn() {
+		this.lastUsedAt = System.currentTimeMillis();
+		this.borrowTrace = null;
+	}
+
+	void closeQuietly() {
+		statements.clear();
+		try {
+			connection.close();
+		} catch (Exception e) { }
+	}
+
+}
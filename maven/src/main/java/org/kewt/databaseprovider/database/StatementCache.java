@@ -0,0 +1,75 @@
+package org.kewt.databaseprovider.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of prepared statements bound to a single physical connection.
+ * Not thread safe, a connection is only used by one borrower at a time.
+ */
+public class StatementCache {
+
+	public static final int DEFAULT_MAX_SIZE = 32;
+
+	private static final String GENERATED_KEYS_PREFIX = "\u0000keys:";
+
+	private final Map<String, PreparedStatement> statements;
+
+	public StatementCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	@SuppressWarnings("serial")
+	public StatementCache(int maxSize) {
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > maxSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public PreparedStatement prepare(Connection connection, String sql, boolean returnGeneratedKeys) throws SQLException {
+		String key = returnGeneratedKeys ? GENERATED_KEYS_PREFIX + sql : sql;
+		PreparedStatement statement = statements.get(key);
+		if (statement != null && !statement.isClosed()) {
+			return statement;
+		}
+		statement = returnGeneratedKeys
+			? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+			: connection.prepareStatement(sql);
+		statements.put(key, statement);
+		return statement;
+	}
+
+	public void evict(String sql, boolean returnGeneratedKeys) {
+		PreparedStatement statement = statements.remove(returnGeneratedKeys ? GENERATED_KEYS_PREFIX + sql : sql);
+		closeQuietly(statement);
+	}
+
+	public void clear() {
+		for (PreparedStatement statement : statements.values()) {
+			closeQuietly(statement);
+		}
+		statements.clear();
+	}
+
+	// Private Methods
+
+	private static void closeQuietly(PreparedStatement statement) {
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (Exception e) { }
+		}
+	}
+
+}
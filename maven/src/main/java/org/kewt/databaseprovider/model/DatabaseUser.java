@@ -66,6 +66,17 @@ public class DatabaseUser {
 		this.lastName = lastName;
 	}
 	
+	public DatabaseUser copy() {
+		DatabaseUser copy = new DatabaseUser();
+		copy.id = id;
+		copy.username = username;
+		copy.email = email;
+		copy.passwordHash = passwordHash;
+		copy.firstName = firstName;
+		copy.lastName = lastName;
+		return copy;
+	}
+	
 	@Override
 	public String toString() {
 		return "DatabaseUser[username="+ username + ",email=" + email + ",firstName=" + firstName + ",lastName=" + lastName + "]";
@@ -0,0 +1,83 @@
+package org.kewt.databaseprovider.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.credential.LegacyUserCredentialManager;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.adapter.AbstractUserAdapter;
+
+/**
+ * Read only view of a database user that is not imported, returned by searches so listing
+ * users does not import them. Its ID is the federated storage ID of the database ID, looking
+ * it up imports the user.
+ */
+public class DatabaseUserAdapter extends AbstractUserAdapter {
+
+	private final DatabaseUser databaseUser;
+
+	private final MultivaluedHashMap<String, String> attributes;
+
+	public DatabaseUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, DatabaseUser databaseUser) {
+		super(session, realm, model);
+		this.databaseUser = databaseUser;
+		this.storageId = new StorageId(model.getId(), databaseUser.getId().toString());
+		this.attributes = new MultivaluedHashMap<>();
+		this.attributes.add(UserModel.USERNAME, databaseUser.getUsername());
+		this.attributes.add(UserModel.EMAIL, databaseUser.getEmail());
+		this.attributes.add(UserModel.FIRST_NAME, databaseUser.getFirstName());
+		this.attributes.add(UserModel.LAST_NAME, databaseUser.getLastName());
+		this.attributes.add(DBFederationConstants.ATTRIBUTE_DATABASE_ID, databaseUser.getId().toString());
+	}
+
+	public DatabaseUser getDatabaseUser() {
+		return databaseUser;
+	}
+
+	@Override
+	public String getUsername() {
+		return databaseUser.getUsername();
+	}
+
+	@Override
+	public SubjectCredentialManager credentialManager() {
+		return new LegacyUserCredentialManager(session, realm, this);
+	}
+
+	@Override
+	public boolean isEmailVerified() {
+		return true;
+	}
+
+	@Override
+	public String getFirstAttribute(String name) {
+		return attributes.getFirst(name);
+	}
+
+	@Deprecated
+	@Override
+	public List<String> getAttribute(String name) {
+		List<String> values = attributes.get(name);
+		return values != null ? values : Collections.emptyList();
+	}
+
+	@Override
+	public Stream<String> getAttributeStream(String name) {
+		return getAttribute(name).stream();
+	}
+
+	@Override
+	public Map<String, List<String>> getAttributes() {
+		return new MultivaluedHashMap<>(attributes);
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.kewt.databaseprovider.model;
+
+import java.sql.Timestamp;
+
+public class DatabaseUserChange {
+
+	public static final String OPERATION_INSERT = "I";
+
+	public static final String OPERATION_UPDATE = "U";
+
+	public static final String OPERATION_DELETE = "D";
+
+	private Integer id;
+
+	private String operation;
+
+	private Timestamp changedAt;
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	public Timestamp getChangedAt() {
+		return changedAt;
+	}
+
+	public void setChangedAt(Timestamp changedAt) {
+		this.changedAt = changedAt;
+	}
+
+	public boolean isDelete() {
+		return OPERATION_DELETE.equalsIgnoreCase(operation);
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseUserChange[id=" + id + ",operation=" + operation + ",changedAt=" + changedAt + "]";
+	}
+
+}
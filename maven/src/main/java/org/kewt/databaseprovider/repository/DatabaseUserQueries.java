@@ -0,0 +1,324 @@
+package org.kewt.databaseprovider.repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.kewt.databaseprovider.database.DatabaseDialect;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * SQL statements of {@link DatabaseUserRepository}, built once per component configuration.
+ */
+public class DatabaseUserQueries {
+
+	private final String usersTable;
+
+	private final String idColumn;
+
+	private final String usernameColumn;
+
+	private final String emailColumn;
+
+	private final String firstNameColumn;
+
+	private final String lastNameColumn;
+
+	private final String passwordColumn;
+
+	private final String lastModifiedColumn;
+
+	private final String changeLogTable;
+
+	private final Map<String, String> attributeColumns;
+
+	private final List<String> columns;
+
+	private final DatabaseUserReader userReader;
+
+	private final String listUsers;
+
+	private final SearchQueryCompiler searchCompiler;
+
+	private final String select;
+
+	private final String listUsersAfter;
+
+	private final String listUserIdsAfter;
+
+	private final String countUsers;
+
+	private final String userRowEstimate;
+
+	private final DatabaseDialect dialect;
+
+	private final String getUsersByIdArray;
+
+	private final String maxLastModified;
+
+	private final String listUsersModifiedBetween;
+
+	private final String listChanges;
+
+	private final String getUserById;
+
+	private final String getUserByUsername;
+
+	private final String getUserByEmail;
+
+	private final String getUsersByUsernameOrEmail;
+
+	private final String updatePassword;
+
+	private final String insert;
+
+	private final String update;
+
+	private final String delete;
+
+	public DatabaseUserQueries(ComponentModel model) {
+		this.usersTable = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_USERS_TABLE), "users");
+		this.idColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_ID_COLUMN), "id");
+		this.usernameColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_USERNAME_COLUMN), "username");
+		this.emailColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_EMAIL_COLUMN), "email");
+		this.firstNameColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_FIRSTNAME_COLUMN), "first_name");
+		this.lastNameColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_LASTNAME_COLUMN), "last_name");
+		this.passwordColumn = ObjectUtils.firstNonNull(model.get(DBFederationConstants.CONFIG_PASSWORD_COLUMN), "password_hash");
+		this.lastModifiedColumn = StringUtils.trimToNull(model.get(DBFederationConstants.CONFIG_LAST_MODIFIED_COLUMN));
+		this.changeLogTable = StringUtils.trimToNull(model.get(DBFederationConstants.CONFIG_CHANGELOG_TABLE));
+
+		this.attributeColumns = parseAttributeColumns(model.get(DBFederationConstants.CONFIG_ATTRIBUTE_COLUMNS));
+
+		this.columns = Arrays.asList(idColumn, usernameColumn, emailColumn, firstNameColumn, lastNameColumn, passwordColumn);
+		this.userReader = DatabaseUserReader.forColumns(columns, this);
+
+		this.searchCompiler = new SearchQueryCompiler(this);
+
+		this.select = "select " + String.join(",", columns) + " from " + usersTable;
+		this.listUsers = select;
+		this.listUsersAfter = select + " where " + idColumn + " > ? order by " + idColumn + " limit ?";
+		this.listUserIdsAfter = "select " + idColumn + " from " + usersTable + " where " + idColumn + " > ? order by " + idColumn + " limit 1 offset ?";
+		this.countUsers = "select count(*) from " + usersTable;
+		this.dialect = DatabaseDialect.fromUrl(model.get(DBFederationConstants.CONFIG_JDBC_URL));
+		this.userRowEstimate = dialect.getRowEstimateQuery();
+		if (lastModifiedColumn != null) {
+			this.maxLastModified = "select max(" + lastModifiedColumn + ") from " + usersTable;
+			this.listUsersModifiedBetween = select + " where " + lastModifiedColumn + " > ? and " + lastModifiedColumn + " <= ?";
+		} else {
+			this.maxLastModified = null;
+			this.listUsersModifiedBetween = null;
+		}
+		if (changeLogTable != null) {
+			String after = dialect.isRowValueComparisonSupported() ? "(changed_at, id) > (?, ?)" : "changed_at >= ? and (changed_at > ? or id > ?)";
+			this.listChanges = "select id, op, changed_at from " + changeLogTable + " where " + after + " order by changed_at, id limit ?";
+		} else {
+			this.listChanges = null;
+		}
+		this.getUserById = select + " where " + idColumn + " = ?";
+		this.getUsersByIdArray = dialect.isArrayParameterSupported() ? select + " where " + idColumn + " = any(?)" : null;
+		this.getUserByUsername = select + " where " + usernameColumn + " = ?";
+		this.getUserByEmail = select + " where " + emailColumn + " = ?";
+		this.getUsersByUsernameOrEmail = select + " where " + usernameColumn + " = ? or " + emailColumn + " = ?";
+		this.updatePassword = "update " + usersTable + " set " + passwordColumn + " = ? where " + idColumn + " = ?";
+		this.insert = "insert into " + usersTable + " (" + usernameColumn + ", " + emailColumn + ", " + firstNameColumn + ", " + lastNameColumn + ", " + passwordColumn + ") values (?, ?, ?, ?, ?)";
+		this.update = "update " + usersTable + " set " + usernameColumn + " = ?, " + emailColumn + " = ?, " + firstNameColumn + " = ?, " + lastNameColumn + "= ? where " + idColumn + " = ?";
+		this.delete = "delete from " + usersTable + " where " + idColumn + " = ?";
+	}
+
+	public String getUsersTable() {
+		return usersTable;
+	}
+
+	public String getIdColumn() {
+		return idColumn;
+	}
+
+	public String getUsernameColumn() {
+		return usernameColumn;
+	}
+
+	public String getEmailColumn() {
+		return emailColumn;
+	}
+
+	public String getFirstNameColumn() {
+		return firstNameColumn;
+	}
+
+	public String getLastNameColumn() {
+		return lastNameColumn;
+	}
+
+	public String getPasswordColumn() {
+		return passwordColumn;
+	}
+
+	public String getLastModifiedColumn() {
+		return lastModifiedColumn;
+	}
+
+	public String getChangeLogTable() {
+		return changeLogTable;
+	}
+
+	/**
+	 * Returns the columns of the searchable user attributes by attribute name, the built-in
+	 * attributes first followed by the configured ones.
+	 */
+	public Map<String, String> getAttributeColumns() {
+		return attributeColumns;
+	}
+
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	public DatabaseUserReader getUserReader() {
+		return userReader;
+	}
+
+	public String getListUsers() {
+		return listUsers;
+	}
+
+	public SearchQueryCompiler getSearchCompiler() {
+		return searchCompiler;
+	}
+
+	/**
+	 * Returns the query of the users matching the given search whose ID is greater than a
+	 * given one, with the parameters of the search followed by that ID and the limit.
+	 */
+	public String getSearchUsersAfter(SearchQuery search) {
+		if (search.getPredicate() == null) {
+			return listUsersAfter;
+		}
+		return select + " where (" + search.getPredicate() + ") and " + idColumn + " > ? order by " + idColumn + " limit ?";
+	}
+
+	/**
+	 * Returns the query of the ID of the user some rows after a given ID among the users matching
+	 * the given search, with the parameters of the search followed by that ID and the rows to skip.
+	 */
+	public String getSearchUserIdsAfter(SearchQuery search) {
+		if (search.getPredicate() == null) {
+			return listUserIdsAfter;
+		}
+		return "select " + idColumn + " from " + usersTable + " where (" + search.getPredicate() + ") and " + idColumn + " > ? order by " + idColumn + " limit 1 offset ?";
+	}
+
+	public String getCountUsers() {
+		return countUsers;
+	}
+
+	/**
+	 * Returns the query counting the users matching the given search, with the parameters of the search.
+	 */
+	public String getCountUsers(SearchQuery search) {
+		if (search.getPredicate() == null) {
+			return countUsers;
+		}
+		return "select count(*) from " + usersTable + " where " + search.getPredicate();
+	}
+
+	/**
+	 * Returns the query of the estimated row count of the users table, with the schema and
+	 * table names as parameters, null when the database keeps no estimate.
+	 */
+	public String getUserRowEstimate() {
+		return userRowEstimate;
+	}
+
+	public String getMaxLastModified() {
+		return maxLastModified;
+	}
+
+	public String getListUsersModifiedBetween() {
+		return listUsersModifiedBetween;
+	}
+
+	public String getListChanges() {
+		return listChanges;
+	}
+
+	public String getUserById() {
+		return getUserById;
+	}
+
+	public DatabaseDialect getDialect() {
+		return dialect;
+	}
+
+	/**
+	 * Returns the query of the users whose ID is in an array parameter, null when the
+	 * database does not support array parameters.
+	 */
+	public String getUsersByIdArray() {
+		return getUsersByIdArray;
+	}
+
+	/**
+	 * Returns the query of the users whose ID is one of count parameters.
+	 */
+	public String getUsersByIds(int count) {
+		StringBuilder sql = new StringBuilder(select).append(" where ").append(idColumn).append(" in (");
+		for (int i = 0; i < count; i++) {
+			sql.append(i > 0 ? ",?" : "?");
+		}
+		return sql.append(")").toString();
+	}
+
+	public String getUserByUsername() {
+		return getUserByUsername;
+	}
+
+	public String getUserByEmail() {
+		return getUserByEmail;
+	}
+
+	public String getUsersByUsernameOrEmail() {
+		return getUsersByUsernameOrEmail;
+	}
+
+	public String getUpdatePassword() {
+		return updatePassword;
+	}
+
+	public String getInsert() {
+		return insert;
+	}
+
+	public String getUpdate() {
+		return update;
+	}
+
+	public String getDelete() {
+		return delete;
+	}
+
+	// Private Methods
+
+	private Map<String, String> parseAttributeColumns(String mappings) {
+		Map<String, String> attributeColumns = new LinkedHashMap<>();
+		attributeColumns.put(UserModel.USERNAME, usernameColumn);
+		attributeColumns.put(UserModel.EMAIL, emailColumn);
+		attributeColumns.put(UserModel.FIRST_NAME, firstNameColumn);
+		attributeColumns.put(UserModel.LAST_NAME, lastNameColumn);
+		for (String mapping : StringUtils.split(StringUtils.defaultString(mappings), ',')) {
+			String attribute = StringUtils.trimToNull(StringUtils.substringBefore(mapping, ":"));
+			String column = StringUtils.trimToNull(StringUtils.substringAfter(mapping, ":"));
+			if (attribute == null || column == null) {
+				throw new IllegalArgumentException("Invalid attribute column mapping " + mapping.trim());
+			}
+			attributeColumns.put(attribute, column);
+		}
+		return Collections.unmodifiableMap(attributeColumns);
+	}
+
+}
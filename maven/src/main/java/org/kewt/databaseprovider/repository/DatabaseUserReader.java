@@ -0,0 +1,96 @@
+package org.kewt.databaseprovider.repository;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.kewt.databaseprovider.database.callbacks.QueryReader;
+import org.kewt.databaseprovider.model.DatabaseUser;
+
+/**
+ * Maps rows to {@link DatabaseUser} reading columns by index. The column layout is resolved
+ * once, either from the select list of a compiled query or from the metadata of a result set,
+ * so rows are read without looking at metadata. Instances are immutable and thread safe.
+ */
+public class DatabaseUserReader implements QueryReader<DatabaseUser> {
+
+	private final int idIndex;
+
+	private final int usernameIndex;
+
+	private final int emailIndex;
+
+	private final int firstNameIndex;
+
+	private final int lastNameIndex;
+
+	private final int passwordIndex;
+
+	private DatabaseUserReader(int idIndex, int usernameIndex, int emailIndex, int firstNameIndex, int lastNameIndex, int passwordIndex) {
+		this.idIndex = idIndex;
+		this.usernameIndex = usernameIndex;
+		this.emailIndex = emailIndex;
+		this.firstNameIndex = firstNameIndex;
+		this.lastNameIndex = lastNameIndex;
+		this.passwordIndex = passwordIndex;
+	}
+
+	/**
+	 * Binds the reader to the given select list, in the order the columns are selected.
+	 */
+	public static DatabaseUserReader forColumns(List<String> columns, DatabaseUserQueries queries) {
+		return new DatabaseUserReader(
+			columns.indexOf(queries.getIdColumn()) + 1,
+			columns.indexOf(queries.getUsernameColumn()) + 1,
+			columns.indexOf(queries.getEmailColumn()) + 1,
+			columns.indexOf(queries.getFirstNameColumn()) + 1,
+			columns.indexOf(queries.getLastNameColumn()) + 1,
+			columns.indexOf(queries.getPasswordColumn()) + 1);
+	}
+
+	/**
+	 * Binds the reader to the columns of a result set whose select list is not known in advance.
+	 */
+	public static DatabaseUserReader forMetadata(ResultSetMetaData metadata, DatabaseUserQueries queries) throws SQLException {
+		int[] indexes = new int[6];
+		String[] names = new String[] {
+			queries.getIdColumn(), queries.getUsernameColumn(), queries.getEmailColumn(),
+			queries.getFirstNameColumn(), queries.getLastNameColumn(), queries.getPasswordColumn()
+		};
+		for (int i = metadata.getColumnCount(); i >= 1; i--) {
+			String column = metadata.getColumnName(i);
+			for (int j = 0; j < names.length; j++) {
+				if (names[j].equals(column)) {
+					indexes[j] = i;
+				}
+			}
+		}
+		return new DatabaseUserReader(indexes[0], indexes[1], indexes[2], indexes[3], indexes[4], indexes[5]);
+	}
+
+	@Override
+	public DatabaseUser onRowFound(ResultSet rs) throws SQLException {
+		DatabaseUser user = new DatabaseUser();
+		if (idIndex > 0) {
+			user.setId(rs.getInt(idIndex));
+		}
+		if (usernameIndex > 0) {
+			user.setUsername(rs.getString(usernameIndex));
+		}
+		if (emailIndex > 0) {
+			user.setEmail(rs.getString(emailIndex));
+		}
+		if (firstNameIndex > 0) {
+			user.setFirstName(rs.getString(firstNameIndex));
+		}
+		if (lastNameIndex > 0) {
+			user.setLastName(rs.getString(lastNameIndex));
+		}
+		if (passwordIndex > 0) {
+			user.setPasswordHash(rs.getString(passwordIndex));
+		}
+		return user;
+	}
+
+}
@@ -2,148 +2,301 @@ package org.kewt.databaseprovider.repository;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.util.HashSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.commons.lang3.ObjectUtils;
-import org.kewt.databaseprovider.DBFederationConstants;
+import org.kewt.databaseprovider.cache.DatabaseUserCache;
+import org.kewt.databaseprovider.cache.SingleFlight;
+import org.kewt.databaseprovider.cache.UserBloomFilter;
 import org.kewt.databaseprovider.database.DatabaseConnection;
+import org.kewt.databaseprovider.database.callbacks.QueryPreparer;
 import org.kewt.databaseprovider.database.callbacks.QueryReader;
 import org.kewt.databaseprovider.model.DatabaseUser;
+import org.kewt.databaseprovider.model.DatabaseUserChange;
 import org.keycloak.component.ComponentModel;
 
 public class DatabaseUserRepository {
-	
+
 	private DatabaseConnection connection;
-	
-	private ComponentModel model;
-	
-	private String usersTable;
-	
-	private String idColumn;
-	
-	private String usernameColumn;
-	
-	private String emailColumn;
-	
-	private String firstNameColumn;
-	
-	private String lastNameColumn;
-	
-	private String passwordColumn;
-	
+
+	private DatabaseUserQueries queries;
+
 	private QueryReader<DatabaseUser> reader;
-	
+
+	private DatabaseUserCache cache;
+
+	private UserBloomFilter filter;
+
+	private SingleFlight<String> lookups;
+
 	public DatabaseUserRepository(DatabaseConnection connection, ComponentModel model) {
+		this(connection, new DatabaseUserQueries(model));
+	}
+
+	public DatabaseUserRepository(DatabaseConnection connection, DatabaseUserQueries queries) {
+		this(connection, queries, null, null, null);
+	}
+
+	/**
+	 * Creates a repository whose single user lookups are served from the given cache when
+	 * possible, and whose writes invalidate it. Lookups by username or email of users the
+	 * given filter does not know are answered without a query, and concurrent lookups of the
+	 * same user share a single query through the given lookups. All three may be null.
+	 */
+	public DatabaseUserRepository(DatabaseConnection connection, DatabaseUserQueries queries, DatabaseUserCache cache, UserBloomFilter filter, SingleFlight<String> lookups) {
 		this.connection = connection;
-		this.model = model;
-		this.usersTable = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_USERS_TABLE), "users");
-		this.idColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_ID_COLUMN), "id");
-		this.usernameColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_USERNAME_COLUMN), "username");
-		this.emailColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_EMAIL_COLUMN), "email");
-		this.firstNameColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_FIRSTNAME_COLUMN), "first_name");
-		this.lastNameColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_LASTNAME_COLUMN), "last_name");
-		this.passwordColumn = ObjectUtils.firstNonNull(this.model.get(DBFederationConstants.CONFIG_PASSWORD_COLUMN), "password_hash");
-		this.reader = (ResultSet rs) -> {
-			Set<String> columns = new HashSet<>();
-			ResultSetMetaData metadata = rs.getMetaData();
-		    for (int i = 1; i <= metadata.getColumnCount(); i++) {
-		    	columns.add(metadata.getColumnName(i));
-		    }
-
-			DatabaseUser user = new DatabaseUser();
-			if (columns.contains(idColumn)) {
-				user.setId(rs.getInt(idColumn));
-			}
-			if (columns.contains(usernameColumn)) {
-				user.setUsername(rs.getString(usernameColumn));
-			}
-			if (columns.contains(emailColumn)) {
-				user.setEmail(rs.getString(emailColumn));
-			}
-			if (columns.contains(firstNameColumn)) {
-				user.setFirstName(rs.getString(firstNameColumn));
-			}
-			if (columns.contains(lastNameColumn)) {
-				user.setLastName(rs.getString(lastNameColumn));
-			}
-			if (columns.contains(passwordColumn)) {
-				user.setPasswordHash(rs.getString(passwordColumn));
-			}
-			return user;
-		};
-	}
-	
-	public List<DatabaseUser> listUsers() {
-		String sql = "select " + getColumns() + " from " + usersTable;
-		return connection.queryList(sql, null, reader);
-	}
-	
-	public List<DatabaseUser> listUsers(Integer firstResult, Integer maxResults) {
-		String sql = "select " + getColumns() + " from " + usersTable + " limit ? offset ?";
-		return connection.queryList(sql, (PreparedStatement statement) -> {
-			statement.setInt(1, maxResults);
-			statement.setInt(2, firstResult);
-		}, reader);
+		this.queries = queries;
+		this.reader = queries.getUserReader();
+		this.cache = cache;
+		this.filter = filter;
+		this.lookups = lookups;
 	}
-	
-	public List<DatabaseUser> searchUsers(String search, Integer firstResult, Integer maxResults) {
-		if (search.equals("*")) {
-			return listUsers(firstResult, maxResults);
-		}
-		String sql = "select " + getColumns() + " from " + usersTable + " where " + usernameColumn + " like ? or " + usernameColumn + " like ? or " + firstNameColumn + " like ? or " + lastNameColumn + " like ? limit ? offset ?";
-		String value = "%" + search + "%";
-		return connection.queryList(sql, (PreparedStatement statement) -> {
-			statement.setString(1, value);
-			statement.setString(2, value);
-			statement.setString(3, value);
-			statement.setString(4, value);
-			statement.setInt(5, maxResults);
-			statement.setInt(6, firstResult);
-			
+
+	/**
+	 * Streams every user of the table fetching fetchSize rows at a time. The stream must be closed.
+	 */
+	public Stream<DatabaseUser> streamUsers(int fetchSize) {
+		return connection.queryStream(queries.getListUsers(), null, reader, fetchSize);
+	}
+
+	/**
+	 * Returns the highest value of the last modified column, null when the table is empty.
+	 */
+	public Timestamp getLastModifiedWatermark() {
+		return connection.querySingle(queries.getMaxLastModified(), null, (ResultSet rs) -> {
+			return rs.getTimestamp(1);
+		});
+	}
+
+	/**
+	 * Streams the users modified after from and up to to, fetching fetchSize rows at a time. The stream must be closed.
+	 * Users are added to the filter as they are read.
+	 */
+	public Stream<DatabaseUser> streamUsersModifiedBetween(Timestamp from, Timestamp to, int fetchSize) {
+		Stream<DatabaseUser> users = connection.queryStream(queries.getListUsersModifiedBetween(), (PreparedStatement statement) -> {
+			statement.setTimestamp(1, from);
+			statement.setTimestamp(2, to);
+		}, reader, fetchSize);
+		return filter != null ? users.peek(filter::add) : users;
+	}
+
+	/**
+	 * Lists up to limit entries of the change log table recorded after the given position,
+	 * ordered by change time and user ID.
+	 */
+	public List<DatabaseUserChange> listChanges(Timestamp changedAfter, Integer idAfter, int limit) {
+		return connection.queryList(queries.getListChanges(), (PreparedStatement statement) -> {
+			int index = 1;
+			statement.setTimestamp(index++, changedAfter);
+			if (!queries.getDialect().isRowValueComparisonSupported()) {
+				statement.setTimestamp(index++, changedAfter);
+			}
+			statement.setInt(index++, idAfter);
+			statement.setInt(index, limit);
+		}, (ResultSet rs) -> {
+			DatabaseUserChange change = new DatabaseUserChange();
+			change.setId(rs.getInt(1));
+			change.setOperation(rs.getString(2));
+			change.setChangedAt(rs.getTimestamp(3));
+			return change;
+		});
+	}
+
+	/**
+	 * Lazily streams the users matching search ordered by ID. Rows are read pageSize at a time
+	 * with keyset queries continuing after the last ID read, and the position of every page
+	 * read is recorded in anchors, so a later request for a page at a known offset starts
+	 * from its ID instead of skipping rows.
+	 */
+	public Stream<DatabaseUser> streamSearchUsers(SearchQuery search, SearchAnchors anchors, Integer firstResult, Integer maxResults, int pageSize) {
+		int first = firstResult != null && firstResult > 0 ? firstResult : 0;
+		long max = maxResults != null && maxResults >= 0 ? maxResults : Long.MAX_VALUE;
+		return StreamSupport.stream(new KeysetSpliterator(search, anchors, first, max, pageSize), false);
+	}
+
+	/**
+	 * Lists up to limit users matching search whose ID is greater than afterId, ordered by ID.
+	 */
+	public List<DatabaseUser> searchUsersAfter(SearchQuery search, Integer afterId, int limit) {
+		return connection.queryList(queries.getSearchUsersAfter(search), (PreparedStatement statement) -> {
+			int index = search.bind(statement);
+			statement.setInt(index, afterId);
+			statement.setInt(index + 1, limit);
 		}, reader);
 	}
-	
+
+	/**
+	 * Returns the ID of the user skip rows after afterId among the users matching search,
+	 * reading IDs only, null when there are not that many.
+	 */
+	public Integer findUserIdAfter(SearchQuery search, Integer afterId, int skip) {
+		return connection.querySingle(queries.getSearchUserIdsAfter(search), (PreparedStatement statement) -> {
+			int index = search.bind(statement);
+			statement.setInt(index, afterId);
+			statement.setInt(index + 1, skip);
+		}, (ResultSet rs) -> {
+			return rs.getInt(1);
+		});
+	}
+
 	public Integer countUsers() {
-		return connection.querySingle("select count(*) from " + usersTable, null, (ResultSet rs) -> {
+		return connection.querySingle(queries.getCountUsers(), null, (ResultSet rs) -> {
 			return rs.getInt(1);
 		});
 	}
-	
+
+	public Integer countUsers(SearchQuery search) {
+		return connection.querySingle(queries.getCountUsers(search), (PreparedStatement statement) -> {
+			search.bind(statement);
+		}, (ResultSet rs) -> {
+			return rs.getInt(1);
+		});
+	}
+
+	/**
+	 * Returns the row count of the users table estimated by the database statistics, without
+	 * reading the table, null when the database keeps no estimate or has not computed it yet.
+	 */
+	public Long estimateUserCount() {
+		if (queries.getUserRowEstimate() == null) {
+			return null;
+		}
+		String table = queries.getUsersTable();
+		int separator = table.lastIndexOf('.');
+		Long estimate = connection.querySingle(queries.getUserRowEstimate(), (PreparedStatement statement) -> {
+			statement.setString(1, separator > 0 ? table.substring(0, separator) : null);
+			statement.setString(2, table.substring(separator + 1));
+		}, (ResultSet rs) -> {
+			return rs.getLong(1);
+		});
+		return estimate != null && estimate > 0 ? estimate : null;
+	}
+
 	public DatabaseUser getUserById(Integer id) {
-		String sql = "select " + getColumns() + " from " + usersTable + " where " + idColumn + " = ?";
-		return connection.querySingle(sql, (PreparedStatement statement) -> {
+		return getUser("i:" + id, cache != null ? cache.getById(id) : null, queries.getUserById(), (PreparedStatement statement) -> {
 			statement.setInt(1, id);
-		}, reader);
+		});
 	}
-	
+
+	/**
+	 * Returns the users with the given IDs in the order of the IDs, skipping the IDs of no
+	 * user and repeated ones. Users not cached are read with as few statements as the dialect
+	 * allows: one array parameter per chunk on PostgreSQL, in lists elsewhere, padded to a
+	 * power of two so few distinct statements are prepared.
+	 */
+	public List<DatabaseUser> getUsersByIds(Collection<Integer> ids) {
+		Map<Integer, DatabaseUser> users = new LinkedHashMap<>();
+		List<Integer> missing = new ArrayList<>();
+		for (Integer id : ids) {
+			if (id == null || users.containsKey(id)) {
+				continue;
+			}
+			DatabaseUser cached = cache != null ? cache.getById(id) : null;
+			users.put(id, cached);
+			if (cached == null) {
+				missing.add(id);
+			}
+		}
+		int chunkSize = queries.getDialect().getIdChunkSize();
+		for (int from = 0; from < missing.size(); from += chunkSize) {
+			List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + chunkSize));
+			for (DatabaseUser user : loadUsers(chunk)) {
+				users.put(user.getId(), user);
+			}
+		}
+		List<DatabaseUser> result = new ArrayList<>(users.size());
+		for (DatabaseUser user : users.values()) {
+			if (user != null) {
+				result.add(user);
+			}
+		}
+		return result;
+	}
+
 	public DatabaseUser getUserByUsername(String username) {
-		String sql = "select " + getColumns() + " from " + usersTable + " where " + usernameColumn + " = ?";
-		return connection.querySingle(sql, (PreparedStatement statement) -> {
+		if (filter != null && !filter.mightContainUsername(username)) {
+			return null;
+		}
+		return getUser("u:" + username, cache != null ? cache.getByUsername(username) : null, queries.getUserByUsername(), (PreparedStatement statement) -> {
 			statement.setString(1, username);
-		}, reader);
+		});
 	}
-	
+
 	public DatabaseUser getUserByEmail(String email) {
-		String sql = "select " + getColumns() + " from " + usersTable + " where " + emailColumn + " = ?";
-		return connection.querySingle(sql, (PreparedStatement statement) -> {
+		if (filter != null && !filter.mightContainEmail(email)) {
+			return null;
+		}
+		return getUser("e:" + email, cache != null ? cache.getByEmail(email) : null, queries.getUserByEmail(), (PreparedStatement statement) -> {
 			statement.setString(1, email);
-		}, reader);
+		});
 	}
-	
+
+	/**
+	 * Lists the users whose username or email is the given value in a single query, at most
+	 * one of each as both columns are unique. No query runs when the cache and the filter
+	 * already answer for both columns, and concurrent queries of the same value are shared.
+	 */
+	public List<DatabaseUser> getUsersByUsernameOrEmail(String value) {
+		boolean noUsername = filter != null && !filter.mightContainUsername(value);
+		boolean noEmail = filter != null && !filter.mightContainEmail(value);
+		if (noUsername && noEmail) {
+			return Collections.emptyList();
+		}
+		DatabaseUser byUsername = !noUsername && cache != null ? cache.getByUsername(value) : null;
+		DatabaseUser byEmail = !noEmail && cache != null ? cache.getByEmail(value) : null;
+		if ((noUsername || byUsername != null) && (noEmail || byEmail != null)) {
+			List<DatabaseUser> users = new ArrayList<>(2);
+			if (byUsername != null) {
+				users.add(byUsername);
+			}
+			if (byEmail != null && (byUsername == null || !byEmail.getId().equals(byUsername.getId()))) {
+				users.add(byEmail);
+			}
+			return users;
+		}
+		if (lookups == null) {
+			return loadUsersByUsernameOrEmail(value);
+		}
+		return lookups.execute("ue:" + value, () -> loadUsersByUsernameOrEmail(value), (List<DatabaseUser> users) -> {
+			List<DatabaseUser> copies = new ArrayList<>(users.size());
+			for (DatabaseUser user : users) {
+				copies.add(user.copy());
+			}
+			return copies;
+		});
+	}
+
+	/**
+	 * Drops the cached copy of the given user, so the next lookup reads it from the database.
+	 */
+	public void evict(Integer id) {
+		if (cache != null) {
+			cache.invalidate(id);
+		}
+	}
+
 	public boolean updatePassword(Integer id, String password) {
-		String sql = "update " + usersTable + " set " + passwordColumn + " = ? where " + idColumn + " = ?";
-        return connection.execute(sql, (PreparedStatement statement) -> {
-        	statement.setString(1, password);
+		boolean updated = connection.execute(queries.getUpdatePassword(), (PreparedStatement statement) -> {
+			statement.setString(1, password);
 			statement.setInt(2, id);
-        }) > 0;
+		}) > 0;
+		evict(id);
+		return updated;
 	}
-	
+
 	public Integer insert(DatabaseUser user) {
-		String sql = "insert into " + usersTable + " (" + usernameColumn + ", " + emailColumn + ", " + firstNameColumn + ", " + lastNameColumn + ", " + passwordColumn + ") values (?, ?, ?, ?, ?)";
-		return connection.executeAndReturnGeneratedKeys(sql, (PreparedStatement statement) -> {
+		Integer id = connection.executeAndReturnGeneratedKeys(queries.getInsert(), (PreparedStatement statement) -> {
 			statement.setString(1, user.getUsername());
 			statement.setString(2, user.getEmail());
 			statement.setString(3, user.getFirstName());
@@ -153,31 +306,197 @@ public class DatabaseUserRepository {
 			user.setId(rs.getInt(1));
 			return user.getId();
 		});
+		invalidate(user);
+		if (filter != null) {
+			filter.add(user);
+		}
+		return id;
 	}
-	
+
 	public boolean update(DatabaseUser user) {
-		String sql = "update " + usersTable + " set " + usernameColumn + " = ?, " + emailColumn + " = ?, " + firstNameColumn + " = ?, " + lastNameColumn + "= ? where " + idColumn + " = ?";
-		return connection.execute(sql, (PreparedStatement statement) -> {
+		boolean updated = connection.execute(queries.getUpdate(), (PreparedStatement statement) -> {
 			statement.setString(1, user.getUsername());
 			statement.setString(2, user.getEmail());
 			statement.setString(3, user.getFirstName());
 			statement.setString(4, user.getLastName());
 			statement.setInt(5, user.getId());
 		}) > 0;
+		invalidate(user);
+		if (filter != null) {
+			filter.add(user);
+		}
+		return updated;
 	}
-	
+
 	public boolean delete(DatabaseUser user) {
-		String sql = "delete from " + usersTable + " where " + idColumn + " = ?";
-		return connection.execute(sql, (PreparedStatement statement) -> {
+		boolean deleted = connection.execute(queries.getDelete(), (PreparedStatement statement) -> {
 			statement.setInt(1, user.getId());
 		}) > 0;
+		invalidate(user);
+		return deleted;
 	}
-	
+
 	// Private Methods
-	
-	private String getColumns() {
-		String[] columns = new String[] { idColumn, usernameColumn, emailColumn, firstNameColumn, lastNameColumn, passwordColumn };
-		return String.join(",", columns);
+
+	private void invalidate(DatabaseUser user) {
+		if (cache != null) {
+			cache.invalidate(user);
+		}
+	}
+
+	private DatabaseUser getUser(String key, DatabaseUser cached, String sql, QueryPreparer prepare) {
+		if (cached != null) {
+			return cached;
+		}
+		if (lookups == null) {
+			return loadUser(sql, prepare);
+		}
+		return lookups.execute(key, () -> loadUser(sql, prepare), (DatabaseUser user) -> {
+			return user != null ? user.copy() : null;
+		});
+	}
+
+	private List<DatabaseUser> loadUsersByUsernameOrEmail(String value) {
+		long generation = cache != null ? cache.generation() : 0;
+		List<DatabaseUser> users = connection.queryList(queries.getUsersByUsernameOrEmail(), (PreparedStatement statement) -> {
+			statement.setString(1, value);
+			statement.setString(2, value);
+		}, reader);
+		for (DatabaseUser user : users) {
+			if (cache != null) {
+				cache.put(user, generation);
+			}
+			if (filter != null) {
+				filter.add(user);
+			}
+		}
+		return users;
+	}
+
+	private List<DatabaseUser> loadUsers(List<Integer> ids) {
+		long generation = cache != null ? cache.generation() : 0;
+		List<DatabaseUser> users;
+		if (queries.getUsersByIdArray() != null) {
+			users = connection.queryList(queries.getUsersByIdArray(), (PreparedStatement statement) -> {
+				statement.setArray(1, statement.getConnection().createArrayOf("integer", ids.toArray()));
+			}, reader);
+		} else {
+			int count = Math.min(Integer.highestOneBit(ids.size() * 2 - 1), queries.getDialect().getIdChunkSize());
+			users = connection.queryList(queries.getUsersByIds(count), (PreparedStatement statement) -> {
+				for (int i = 0; i < count; i++) {
+					statement.setInt(i + 1, ids.get(Math.min(i, ids.size() - 1)));
+				}
+			}, reader);
+		}
+		for (DatabaseUser user : users) {
+			if (cache != null) {
+				cache.put(user, generation);
+			}
+			if (filter != null) {
+				filter.add(user);
+			}
+		}
+		return users;
+	}
+
+	private DatabaseUser loadUser(String sql, QueryPreparer prepare) {
+		long generation = cache != null ? cache.generation() : 0;
+		DatabaseUser user = connection.querySingle(sql, prepare, reader);
+		if (cache != null) {
+			cache.put(user, generation);
+		}
+		if (user != null && filter != null) {
+			filter.add(user);
+		}
+		return user;
+	}
+
+	private class KeysetSpliterator extends Spliterators.AbstractSpliterator<DatabaseUser> {
+
+		private final SearchQuery search;
+
+		private final String key;
+
+		private final SearchAnchors anchors;
+
+		private final int pageSize;
+
+		private int offset;
+
+		private long remaining;
+
+		private Integer afterId;
+
+		private Iterator<DatabaseUser> page = Collections.emptyIterator();
+
+		private boolean exhausted;
+
+		KeysetSpliterator(SearchQuery search, SearchAnchors anchors, int offset, long remaining, int pageSize) {
+			super(remaining, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.search = search;
+			this.key = search.getKey();
+			this.anchors = anchors;
+			this.offset = offset;
+			this.remaining = remaining;
+			this.pageSize = Math.max(1, pageSize);
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super DatabaseUser> action) {
+			if (!page.hasNext()) {
+				if (exhausted || remaining <= 0 || !fetch()) {
+					return false;
+				}
+			}
+			remaining--;
+			action.accept(page.next());
+			return true;
+		}
+
+		private boolean fetch() {
+			if (afterId == null && !seek()) {
+				exhausted = true;
+				return false;
+			}
+			int limit = (int) Math.min(pageSize, remaining);
+			List<DatabaseUser> users = searchUsersAfter(search, afterId, limit);
+			if (users.size() < limit) {
+				exhausted = true;
+			}
+			if (users.isEmpty()) {
+				return false;
+			}
+			offset += users.size();
+			afterId = users.get(users.size() - 1).getId();
+			if (anchors != null) {
+				anchors.put(key, offset, afterId);
+			}
+			page = users.iterator();
+			return true;
+		}
+
+		/**
+		 * Finds the ID the first page starts after, from the closest anchor before it.
+		 */
+		private boolean seek() {
+			if (offset == 0) {
+				afterId = Integer.MIN_VALUE;
+				return true;
+			}
+			Map.Entry<Integer, Integer> anchor = anchors != null ? anchors.floor(key, offset) : null;
+			if (anchor != null && anchor.getKey() == offset) {
+				afterId = anchor.getValue();
+				return true;
+			}
+			int anchorOffset = anchor != null ? anchor.getKey() : 0;
+			Integer anchorId = anchor != null ? anchor.getValue() : Integer.MIN_VALUE;
+			afterId = findUserIdAfter(search, anchorId, offset - anchorOffset - 1);
+			if (afterId != null && anchors != null) {
+				anchors.put(key, offset, afterId);
+			}
+			return afterId != null;
+		}
+
 	}
 
-}
\ No newline at end of file
+}
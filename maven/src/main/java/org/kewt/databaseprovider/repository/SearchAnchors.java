@@ -0,0 +1,89 @@
+package org.kewt.databaseprovider.repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers, per search, the last ID of the pages already read, so a later page starting at a
+ * known offset is read with a keyset query from that ID instead of skipping rows with OFFSET.
+ *
+ * Anchors are approximate once rows are inserted or deleted, so they expire after a while.
+ * The provider clears them when it writes users, but rows written to the table by other
+ * applications shift the offsets until the anchors expire: a page may then repeat or skip
+ * a few users. Offsets count rows of the table, imports into Keycloak do not move them.
+ */
+public class SearchAnchors {
+
+	private static final int MAX_SEARCHES = 1000;
+
+	private static final int MAX_ANCHORS_PER_SEARCH = 256;
+
+	private final long ttlNanos;
+
+	private final LinkedHashMap<String, Anchors> searches;
+
+	public SearchAnchors(long ttlMillis) {
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.searches = new LinkedHashMap<String, Anchors>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Anchors> eldest) {
+				return size() > MAX_SEARCHES;
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the anchor with the greatest offset not greater than the given one, null if none.
+	 */
+	public synchronized Map.Entry<Integer, Integer> floor(String search, int offset) {
+		Anchors anchors = searches.get(search);
+		if (anchors == null) {
+			return null;
+		}
+		if (System.nanoTime() - anchors.expiresAt > 0) {
+			searches.remove(search);
+			return null;
+		}
+		return anchors.lastIds.floorEntry(offset);
+	}
+
+	/**
+	 * Records that the row at offset - 1 of the given search has the given ID.
+	 */
+	public synchronized void put(String search, int offset, Integer lastId) {
+		Anchors anchors = searches.get(search);
+		if (anchors == null || System.nanoTime() - anchors.expiresAt > 0) {
+			anchors = new Anchors(System.nanoTime() + ttlNanos);
+			searches.put(search, anchors);
+		}
+		if (anchors.lastIds.size() >= MAX_ANCHORS_PER_SEARCH && !anchors.lastIds.containsKey(offset)) {
+			anchors.lastIds.pollFirstEntry();
+		}
+		anchors.lastIds.put(offset, lastId);
+	}
+
+	/**
+	 * Drops the anchors of every search, after users were written.
+	 */
+	public synchronized void clear() {
+		searches.clear();
+	}
+
+	private static class Anchors {
+
+		private final TreeMap<Integer, Integer> lastIds = new TreeMap<>();
+
+		private final long expiresAt;
+
+		Anchors(long expiresAt) {
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.kewt.databaseprovider.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search compiled by {@link SearchQueryCompiler}: a where clause predicate over the users
+ * table and the values of its parameters, in order.
+ */
+public class SearchQuery {
+
+	private final String predicate;
+
+	private final List<Object> parameters;
+
+	public SearchQuery(String predicate, List<Object> parameters) {
+		this.predicate = predicate;
+		this.parameters = Collections.unmodifiableList(parameters);
+	}
+
+	/**
+	 * Returns the predicate, null when the search matches every user.
+	 */
+	public String getPredicate() {
+		return predicate;
+	}
+
+	public List<Object> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Returns a key identifying the rows matched by the search, equal for equal searches.
+	 */
+	public String getKey() {
+		StringBuilder key = new StringBuilder(predicate == null ? "*" : predicate);
+		for (Object parameter : parameters) {
+			key.append('\n').append(parameter);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Sets the parameters of the predicate starting at index 1, returning the next free index.
+	 */
+	public int bind(PreparedStatement statement) throws SQLException {
+		int index = 1;
+		for (Object parameter : parameters) {
+			if (parameter instanceof Integer) {
+				statement.setInt(index++, (Integer) parameter);
+			} else {
+				statement.setString(index++, (String) parameter);
+			}
+		}
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return predicate == null ? "*" : predicate + " " + parameters;
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.kewt.databaseprovider.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.keycloak.models.UserModel;
+
+/**
+ * Compiles Keycloak search parameters into predicates the database can answer from the
+ * indexes of the users table.
+ *
+ * Values are compared with equality when the search is exact, and with a prefix match
+ * otherwise. A '*' in a value is a wildcard, so "*smith" is the only way to ask for a
+ * match that cannot use an index. The general search matches each of its whitespace
+ * separated terms against the username, email, first and last name columns, a quoted
+ * value being matched as a whole and exactly. Case sensitivity is the one of the column
+ * collations, as wrapping columns in lower() would keep indexes from being used.
+ *
+ * Besides the built-in attributes, DATABASE_ID and the attributes mapped to columns in the
+ * configuration can be searched, both in search parameters and alone by equality.
+ */
+public class SearchQueryCompiler {
+
+	protected static final String LIKE_ESCAPE = "!";
+
+	protected final DatabaseUserQueries queries;
+
+	protected final List<String> searchColumns;
+
+	public SearchQueryCompiler(DatabaseUserQueries queries) {
+		this.queries = queries;
+		this.searchColumns = Arrays.asList(queries.getUsernameColumn(), queries.getEmailColumn(), queries.getFirstNameColumn(), queries.getLastNameColumn());
+	}
+
+	public SearchQuery compile(String search) {
+		return compile(search != null ? Collections.singletonMap(UserModel.SEARCH, search) : Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Compiles the given search parameters, returning null when one of them cannot be
+	 * answered from the users table.
+	 */
+	public SearchQuery compile(Map<String, String> params) {
+		boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+		List<String> conditions = new ArrayList<>();
+		List<Object> parameters = new ArrayList<>();
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			String name = param.getKey();
+			String value = param.getValue();
+			if (UserModel.EXACT.equals(name) || UserModel.INCLUDE_SERVICE_ACCOUNT.equals(name)) {
+				continue;
+			}
+			if (UserModel.SEARCH.equals(name)) {
+				compileSearch(value, conditions, parameters);
+				continue;
+			}
+			if (DBFederationConstants.ATTRIBUTE_DATABASE_ID.equals(name)) {
+				if (!compileId(value, conditions, parameters)) {
+					return null;
+				}
+				continue;
+			}
+			String column = getColumn(name);
+			if (column == null) {
+				return null;
+			}
+			if (value != null) {
+				compileMatch(column, value.trim(), exact, conditions, parameters);
+			}
+		}
+		return new SearchQuery(conditions.isEmpty() ? null : String.join(" and ", conditions), parameters);
+	}
+
+	/**
+	 * Compiles a search of the users whose attribute equals the given value, returning null
+	 * when the attribute is not stored in a column or no user can have that value.
+	 */
+	public SearchQuery compileAttribute(String name, String value) {
+		if (value == null) {
+			return null;
+		}
+		List<String> conditions = new ArrayList<>();
+		List<Object> parameters = new ArrayList<>();
+		if (DBFederationConstants.ATTRIBUTE_DATABASE_ID.equals(name)) {
+			if (!compileId(value, conditions, parameters)) {
+				return null;
+			}
+		} else {
+			String column = getColumn(name);
+			if (column == null) {
+				return null;
+			}
+			compileMatch(column, value, true, conditions, parameters);
+		}
+		return new SearchQuery(conditions.get(0), parameters);
+	}
+
+	// Protected Methods
+
+	protected String getColumn(String param) {
+		return queries.getAttributeColumns().get(param);
+	}
+
+	/**
+	 * Adds the condition matching the ID column, returning false when value is not an ID.
+	 */
+	protected boolean compileId(String value, List<String> conditions, List<Object> parameters) {
+		Integer id;
+		try {
+			id = Integer.valueOf(value.trim());
+		} catch (NullPointerException | NumberFormatException e) {
+			return false;
+		}
+		conditions.add(queries.getIdColumn() + " = ?");
+		parameters.add(id);
+		return true;
+	}
+
+	protected void compileSearch(String search, List<String> conditions, List<Object> parameters) {
+		String value = search != null ? search.trim() : "";
+		if (value.isEmpty() || value.equals("*")) {
+			return;
+		}
+		boolean quoted = value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"");
+		List<String> terms = quoted ? Arrays.asList(value.substring(1, value.length() - 1)) : Arrays.asList(value.split("\\s+"));
+		for (String term : terms) {
+			List<String> alternatives = new ArrayList<>();
+			for (String column : searchColumns) {
+				compileMatch(column, term, quoted, alternatives, parameters);
+			}
+			if (!alternatives.isEmpty()) {
+				conditions.add("(" + String.join(" or ", alternatives) + ")");
+			}
+		}
+	}
+
+	/**
+	 * Adds the condition matching column against value, nothing when it matches every row.
+	 */
+	protected void compileMatch(String column, String value, boolean exact, List<String> conditions, List<Object> parameters) {
+		if (exact) {
+			conditions.add(column + " = ?");
+			parameters.add(value);
+			return;
+		}
+		StringBuilder pattern = new StringBuilder(value.length() + 1);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '*') {
+				pattern.append('%');
+			} else {
+				if (c == '%' || c == '_' || c == LIKE_ESCAPE.charAt(0)) {
+					pattern.append(LIKE_ESCAPE);
+				}
+				pattern.append(c);
+			}
+		}
+		// a prefix match unless already open ended, as Keycloak does: *smith contains smith
+		if (!value.endsWith("*")) {
+			pattern.append('%');
+		}
+		if (pattern.toString().replace("%", "").isEmpty()) {
+			return;
+		}
+		conditions.add(column + " like ? escape '" + LIKE_ESCAPE + "'");
+		parameters.add(pattern.toString());
+	}
+
+}
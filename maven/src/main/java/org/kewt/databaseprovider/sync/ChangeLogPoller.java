@@ -0,0 +1,135 @@
+package org.kewt.databaseprovider.sync;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.kewt.databaseprovider.model.DatabaseUser;
+import org.kewt.databaseprovider.model.DatabaseUserChange;
+import org.kewt.databaseprovider.repository.DatabaseUserRepository;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Applies the entries of the change log table filled by triggers on the users table.
+ *
+ * Entries are read in batches of the synchronizer batch size, changes to the same user are
+ * coalesced and the current rows of a batch are read at once and imported. The imported users
+ * of rows that no longer exist are kept, disabled or removed by the deletion mode, as a full
+ * synchronization does with orphans. The watermark advances after every batch
+ * applied without failures and is saved once at the end of the run.
+ *
+ * Triggers stamp entries when their transaction runs, not when it commits, so a long
+ * transaction can commit entries behind the watermark. Each run therefore starts reading a
+ * lookback window before it, applying again the entries already seen there.
+ */
+public class ChangeLogPoller {
+
+	protected static final Logger LOGGER = Logger.getLogger(ChangeLogPoller.class);
+
+	protected static final String WATERMARK_SEPARATOR = "|";
+
+	protected final DatabaseUserRepository userRepository;
+
+	protected final DatabaseUserSynchronizer synchronizer;
+
+	protected final String deletionMode;
+
+	protected Timestamp changedAt;
+
+	protected Integer id;
+
+	protected Timestamp readChangedAt;
+
+	protected Integer readId;
+
+	public ChangeLogPoller(DatabaseUserRepository userRepository, DatabaseUserSynchronizer synchronizer, String watermark, Timestamp initialChangedAt, int lookbackSeconds, String deletionMode) {
+		this.userRepository = userRepository;
+		this.synchronizer = synchronizer;
+		this.deletionMode = deletionMode;
+		int separator = watermark != null ? watermark.lastIndexOf(WATERMARK_SEPARATOR) : -1;
+		if (separator > 0) {
+			this.changedAt = Timestamp.valueOf(watermark.substring(0, separator));
+			this.id = Integer.valueOf(watermark.substring(separator + 1));
+		} else {
+			this.changedAt = initialChangedAt;
+			this.id = Integer.MIN_VALUE;
+		}
+		if (lookbackSeconds > 0) {
+			this.readChangedAt = new Timestamp(changedAt.getTime() - lookbackSeconds * 1000L);
+			this.readId = Integer.MIN_VALUE;
+		} else {
+			this.readChangedAt = changedAt;
+			this.readId = id;
+		}
+	}
+
+	public SynchronizationResult poll() {
+		SynchronizationResult result = new SynchronizationResult();
+		String initialWatermark = getWatermark();
+		int batchSize = synchronizer.getBatchSize();
+		while (true) {
+			List<DatabaseUserChange> changes = userRepository.listChanges(readChangedAt, readId, batchSize);
+			if (changes.isEmpty()) {
+				break;
+			}
+
+			Map<Integer, DatabaseUserChange> latest = new LinkedHashMap<>();
+			for (DatabaseUserChange change : changes) {
+				latest.remove(change.getId());
+				latest.put(change.getId(), change);
+			}
+			List<Integer> changedIds = new ArrayList<>(latest.size());
+			for (DatabaseUserChange change : latest.values()) {
+				userRepository.evict(change.getId());
+				if (!change.isDelete()) {
+					changedIds.add(change.getId());
+				}
+			}
+			List<DatabaseUser> databaseUsers = userRepository.getUsersByIds(changedIds);
+			Set<Integer> foundIds = new HashSet<>();
+			for (DatabaseUser user : databaseUsers) {
+				foundIds.add(user.getId());
+			}
+			List<Integer> removedIds = new ArrayList<>();
+			for (Integer changedId : latest.keySet()) {
+				if (!foundIds.contains(changedId)) {
+					removedIds.add(changedId);
+				}
+			}
+			LOGGER.debugv("  applying {0} changes ({1} users imported, {2} rows deleted)", changes.size(), databaseUsers.size(), removedIds.size());
+
+			SynchronizationResult batchResult = synchronizer.applyChanges(databaseUsers, removedIds, deletionMode);
+			result.add(batchResult);
+			if (batchResult.getFailed() > 0) {
+				LOGGER.warnv("Stopping change log polling at {0}, {1} changes failed and will be retried", getWatermark(), batchResult.getFailed());
+				break;
+			}
+
+			DatabaseUserChange last = changes.get(changes.size() - 1);
+			readChangedAt = last.getChangedAt();
+			readId = last.getId();
+			if (readChangedAt.after(changedAt) || (readChangedAt.equals(changedAt) && readId > id)) {
+				changedAt = readChangedAt;
+				id = readId;
+			}
+			if (changes.size() < batchSize) {
+				break;
+			}
+		}
+		if (!getWatermark().equals(initialWatermark)) {
+			synchronizer.saveState(DBFederationConstants.STATE_CHANGELOG_WATERMARK, getWatermark());
+		}
+		return result;
+	}
+
+	public String getWatermark() {
+		return changedAt + WATERMARK_SEPARATOR + id;
+	}
+
+}
@@ -0,0 +1,307 @@
+package org.kewt.databaseprovider.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.kewt.databaseprovider.model.DatabaseUser;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.user.SynchronizationResult;
+
+/**
+ * Imports database users into the local Keycloak storage in batches, committing one
+ * Keycloak transaction per batch. When a batch fails its users are retried one by one,
+ * so only the offending rows are reported as failed.
+ */
+public class DatabaseUserSynchronizer {
+
+	protected static final Logger LOGGER = Logger.getLogger(DatabaseUserSynchronizer.class);
+
+	protected final KeycloakSessionFactory sessionFactory;
+
+	protected final String realmId;
+
+	protected final ComponentModel model;
+
+	protected final int batchSize;
+
+	protected ReconciliationIndex index;
+
+	protected int[] seenIds = new int[1024];
+
+	protected int seenCount;
+
+	public DatabaseUserSynchronizer(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel model, int batchSize) {
+		this.sessionFactory = sessionFactory;
+		this.realmId = realmId;
+		this.model = model;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public SynchronizationResult importUsers(Stream<DatabaseUser> databaseUsers) {
+		SynchronizationResult result = new SynchronizationResult();
+		List<DatabaseUser> batch = new ArrayList<>(batchSize);
+		Iterator<DatabaseUser> iterator = databaseUsers.iterator();
+		while (iterator.hasNext()) {
+			DatabaseUser user = iterator.next();
+			if (index != null) {
+				markSeen(user.getId());
+			}
+			batch.add(user);
+			if (batch.size() >= batchSize) {
+				runBatch(batch, this::importUser, result);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			runBatch(batch, this::importUser, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Imports the given users and handles the local users imported from the given database IDs
+	 * as orphans are by the given deletion mode: kept, disabled or removed, all within a single
+	 * batch.
+	 */
+	public SynchronizationResult applyChanges(List<DatabaseUser> databaseUsers, List<Integer> removedIds, String deletionMode) {
+		SynchronizationResult result = new SynchronizationResult();
+		List<Object> batch = new ArrayList<>(databaseUsers.size() + removedIds.size());
+		batch.addAll(databaseUsers);
+		if (!DBFederationConstants.SYNC_DELETION_NONE.equals(deletionMode)) {
+			batch.addAll(removedIds);
+		}
+		if (batch.isEmpty()) {
+			return result;
+		}
+		boolean disable = DBFederationConstants.SYNC_DELETION_DISABLE.equals(deletionMode);
+		runBatch(batch, (UserProvider userProvider, RealmModel realm, Object item, SynchronizationResult itemResult) -> {
+			if (item instanceof DatabaseUser) {
+				importUser(userProvider, realm, (DatabaseUser) item, itemResult);
+			} else {
+				UserModel local = findLocalUser(userProvider, realm, (Integer) item);
+				if (disable) {
+					disableLocal(userProvider, realm, local, (Integer) item, itemResult);
+				} else {
+					removeLocal(userProvider, realm, local, (Integer) item, itemResult);
+				}
+			}
+		}, result);
+		return result;
+	}
+
+	/**
+	 * Loads the reconciliation index of the users already imported, worth it when most of them
+	 * are about to be visited. Without it users are looked up one by one.
+	 */
+	public void loadIndex() {
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			index = ReconciliationIndex.load(session, realm, model.getId());
+		});
+		if (index != null) {
+			LOGGER.debugv("  reconciliation index loaded with {0} users", index.size());
+		} else {
+			LOGGER.debugv("  reconciliation index unavailable, looking up users one by one");
+		}
+	}
+
+	/**
+	 * Handles the imported users whose database ID was not seen by {@link #importUsers(Stream)},
+	 * found by merging the sorted seen IDs with the sorted IDs of the reconciliation index.
+	 * Must only be called after every source row was streamed, it does nothing without the index.
+	 */
+	public void removeOrphans(String deletionMode, SynchronizationResult result) {
+		if (index == null || DBFederationConstants.SYNC_DELETION_NONE.equals(deletionMode)) {
+			return;
+		}
+		boolean disable = DBFederationConstants.SYNC_DELETION_DISABLE.equals(deletionMode);
+		int[] seen = Arrays.copyOf(seenIds, seenCount);
+		Arrays.sort(seen);
+		int[] imported = index.sortedDatabaseIds();
+
+		List<Integer> batch = new ArrayList<>(batchSize);
+		int orphans = 0;
+		for (int i = 0, j = 0; i < imported.length; i++) {
+			while (j < seen.length && seen[j] < imported[i]) {
+				j++;
+			}
+			if (j < seen.length && seen[j] == imported[i]) {
+				continue;
+			}
+			orphans++;
+			batch.add(imported[i]);
+			if (batch.size() >= batchSize) {
+				runBatch(batch, disable ? this::disableOrphan : this::removeOrphan, result);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			runBatch(batch, disable ? this::disableOrphan : this::removeOrphan, result);
+		}
+		LOGGER.debugv("  {0} imported users no longer exist in the database", orphans);
+	}
+
+	/**
+	 * Reads a synchronization state value, falling back to the component configuration where
+	 * earlier versions stored it. Null when never saved.
+	 */
+	public String loadState(String key) {
+		String[] value = new String[1];
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			value[0] = realm.getAttribute(getStateAttribute(model.getId(), key));
+		});
+		return value[0] != null ? value[0] : model.get(key);
+	}
+
+	/**
+	 * Stores a synchronization state value in a realm attribute. Updating the component
+	 * configuration would validate it again, connecting to the database on every save.
+	 */
+	public void saveState(String key, String value) {
+		KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+			RealmModel realm = session.realms().getRealm(realmId);
+			realm.setAttribute(getStateAttribute(model.getId(), key), value);
+		});
+	}
+
+	public static String getStateAttribute(String componentId, String key) {
+		return DBFederationConstants.STATE_ATTRIBUTE_PREFIX + componentId + "." + key;
+	}
+
+	// Protected Methods
+
+	protected <T> void runBatch(List<T> batch, BatchAction<T> action, SynchronizationResult result) {
+		LOGGER.debugv("  processing batch of {0} users", batch.size());
+		SynchronizationResult batchResult = new SynchronizationResult();
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+				RealmModel realm = session.realms().getRealm(realmId);
+				session.getContext().setRealm(realm);
+				UserProvider userProvider = UserStoragePrivateUtil.userLocalStorage(session);
+				for (T item : batch) {
+					action.apply(userProvider, realm, item, batchResult);
+				}
+			});
+			result.add(batchResult);
+		} catch (Exception e) {
+			LOGGER.warnv("Failed syncing batch of {0} users, retrying them one by one: {1}", batch.size(), e.getMessage());
+			for (T item : batch) {
+				SynchronizationResult itemResult = new SynchronizationResult();
+				try {
+					KeycloakModelUtils.runJobInTransaction(sessionFactory, (KeycloakSession session) -> {
+						RealmModel realm = session.realms().getRealm(realmId);
+						session.getContext().setRealm(realm);
+						action.apply(UserStoragePrivateUtil.userLocalStorage(session), realm, item, itemResult);
+					});
+					result.add(itemResult);
+				} catch (Exception itemException) {
+					LOGGER.error(new RuntimeException("Failed syncing " + item, itemException));
+					result.increaseFailed();
+				}
+			}
+		}
+	}
+
+	protected void importUser(UserProvider userProvider, RealmModel realm, DatabaseUser user, SynchronizationResult result) {
+		LOGGER.debugv("  processing {0}", user.getUsername());
+		UserModel local;
+		if (index != null) {
+			String userId = index.getUserId(user.getId());
+			if (userId != null && index.getFingerprint(user.getId()) == ReconciliationIndex.fingerprint(user)) {
+				return;
+			}
+			local = userId != null ? userProvider.getUserById(realm, userId) : null;
+		} else {
+			local = findLocalUser(userProvider, realm, user.getId());
+		}
+		if (local != null) {
+			boolean updated = false;
+			if (user.outOfSync(local)) {
+				user.syncToUserModel(local);
+				updated = true;
+			}
+			if (local.getFirstAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ORPHAN) != null) {
+				LOGGER.debugv("  enabling returned orphan {0}", user.getId());
+				local.removeAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ORPHAN);
+				local.setEnabled(true);
+				updated = true;
+			}
+			if (updated) {
+				result.increaseUpdated();
+			}
+		} else {
+			local = userProvider.addUser(realm, user.getUsername());
+			local.setFederationLink(model.getId());
+			local.setEmail(user.getEmail());
+			local.setFirstName(user.getFirstName());
+			local.setLastName(user.getLastName());
+			local.setEnabled(true);
+			local.setEmailVerified(true);
+			local.setSingleAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ID, user.getId().toString());
+			result.increaseAdded();
+		}
+	}
+
+	protected void removeOrphan(UserProvider userProvider, RealmModel realm, Integer databaseId, SynchronizationResult result) {
+		removeLocal(userProvider, realm, userProvider.getUserById(realm, index.getUserId(databaseId)), databaseId, result);
+	}
+
+	protected void disableOrphan(UserProvider userProvider, RealmModel realm, Integer databaseId, SynchronizationResult result) {
+		disableLocal(userProvider, realm, userProvider.getUserById(realm, index.getUserId(databaseId)), databaseId, result);
+	}
+
+	protected void removeLocal(UserProvider userProvider, RealmModel realm, UserModel local, Integer databaseId, SynchronizationResult result) {
+		if (local != null && model.getId().equals(local.getFederationLink())) {
+			LOGGER.debugv("  removing orphan {0}", databaseId);
+			userProvider.removeUser(realm, local);
+			result.increaseRemoved();
+		}
+	}
+
+	protected void disableLocal(UserProvider userProvider, RealmModel realm, UserModel local, Integer databaseId, SynchronizationResult result) {
+		if (local != null && local.isEnabled() && model.getId().equals(local.getFederationLink())) {
+			LOGGER.debugv("  disabling orphan {0}", databaseId);
+			local.setEnabled(false);
+			local.setSingleAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ORPHAN, Boolean.TRUE.toString());
+			result.increaseRemoved();
+		}
+	}
+
+	protected UserModel findLocalUser(UserProvider userProvider, RealmModel realm, Integer databaseId) {
+		return userProvider.searchForUserByUserAttributeStream(realm, DBFederationConstants.ATTRIBUTE_DATABASE_ID, databaseId.toString()).findFirst().orElse(null);
+	}
+
+	// Private Methods
+
+	private void markSeen(int databaseId) {
+		if (seenCount == seenIds.length) {
+			seenIds = Arrays.copyOf(seenIds, seenCount << 1);
+		}
+		seenIds[seenCount++] = databaseId;
+	}
+
+	@FunctionalInterface
+	protected interface BatchAction<T> {
+
+		void apply(UserProvider userProvider, RealmModel realm, T item, SynchronizationResult result);
+
+	}
+
+}
@@ -0,0 +1,240 @@
+package org.kewt.databaseprovider.sync;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.kewt.databaseprovider.model.DatabaseUser;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import jakarta.persistence.EntityManager;
+
+/**
+ * Maps the database ID of every user imported by a component to its local Keycloak user ID
+ * and a fingerprint of the synchronized fields, so a sync can decide between adding, updating
+ * or skipping a row without querying Keycloak for each one.
+ *
+ * Entries live in parallel primitive arrays indexed by open addressing on the database ID.
+ * Local IDs are kept as the two halves of their UUID, IDs that are not UUIDs go to a side map.
+ */
+public class ReconciliationIndex {
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final String QUERY =
+		"select a.value, u.id, u.username, u.email, u.firstName, u.lastName, u.enabled " +
+		"from UserAttributeEntity a join a.user u " +
+		"where a.name = :name and u.realmId = :realmId and u.federationLink = :federationLink";
+
+	private int[] keys;
+
+	private long[] idHighs;
+
+	private long[] idLows;
+
+	private long[] fingerprints;
+
+	private boolean[] used;
+
+	private final Map<Integer, String> irregularIds;
+
+	private int size;
+
+	private int mask;
+
+	private int resizeAt;
+
+	public ReconciliationIndex(int expectedSize) {
+		this.irregularIds = new HashMap<>();
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * Loads the index of the users imported by the given component through the JPA storage,
+	 * returns null when Keycloak is not running on the JPA storage.
+	 */
+	public static ReconciliationIndex load(KeycloakSession session, RealmModel realm, String componentId) {
+		JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+		if (jpa == null) {
+			return null;
+		}
+		EntityManager entityManager = jpa.getEntityManager();
+		ReconciliationIndex index = new ReconciliationIndex(1024);
+		try (Stream<Object[]> rows = entityManager.createQuery(QUERY, Object[].class)
+				.setParameter("name", DBFederationConstants.ATTRIBUTE_DATABASE_ID)
+				.setParameter("realmId", realm.getId())
+				.setParameter("federationLink", componentId)
+				.getResultStream()) {
+			rows.forEach((Object[] row) -> {
+				Integer databaseId = parseId((String) row[0]);
+				if (databaseId != null) {
+					index.put(databaseId, (String) row[1], fingerprint((String) row[2], (String) row[3], (String) row[4], (String) row[5], (Boolean) row[6]));
+				}
+			});
+		}
+		return index;
+	}
+
+	public static long fingerprint(DatabaseUser user) {
+		return fingerprint(user.getUsername(), user.getEmail(), user.getFirstName(), user.getLastName(), true);
+	}
+
+	/**
+	 * Hashes the synchronized fields, username and email lowercased as Keycloak stores them,
+	 * so a source row with mixed case matches the user it was imported as. Rows of the source
+	 * count as enabled, so a sync looks again at disabled users that may be returned orphans.
+	 */
+	public static long fingerprint(String username, String email, String firstName, String lastName, boolean enabled) {
+		long hash = FNV_OFFSET;
+		hash = (hash ^ (enabled ? 1 : 0)) * FNV_PRIME;
+		hash = fingerprint(hash, username != null ? username.toLowerCase(Locale.ROOT) : null);
+		hash = fingerprint(hash, email != null ? email.toLowerCase(Locale.ROOT) : null);
+		hash = fingerprint(hash, firstName);
+		hash = fingerprint(hash, lastName);
+		return hash;
+	}
+
+	public void put(int databaseId, String userId, long fingerprint) {
+		int slot = slotOf(databaseId);
+		if (!used[slot]) {
+			if (size >= resizeAt) {
+				allocate(keys.length << 1);
+				slot = slotOf(databaseId);
+			}
+			used[slot] = true;
+			keys[slot] = databaseId;
+			size++;
+		}
+		fingerprints[slot] = fingerprint;
+		UUID uuid = parseUuid(userId);
+		if (uuid != null) {
+			idHighs[slot] = uuid.getMostSignificantBits();
+			idLows[slot] = uuid.getLeastSignificantBits();
+			irregularIds.remove(databaseId);
+		} else {
+			idHighs[slot] = 0;
+			idLows[slot] = 0;
+			irregularIds.put(databaseId, userId);
+		}
+	}
+
+	public String getUserId(int databaseId) {
+		int slot = slotOf(databaseId);
+		if (!used[slot]) {
+			return null;
+		}
+		String irregularId = irregularIds.get(databaseId);
+		return irregularId != null ? irregularId : new UUID(idHighs[slot], idLows[slot]).toString();
+	}
+
+	public long getFingerprint(int databaseId) {
+		int slot = slotOf(databaseId);
+		return used[slot] ? fingerprints[slot] : 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int[] sortedDatabaseIds() {
+		int[] result = new int[size];
+		int i = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (used[slot]) {
+				result[i++] = keys[slot];
+			}
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	// Private Methods
+
+	private int slotOf(int key) {
+		int slot = hash(key) & mask;
+		while (used[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void allocate(int capacity) {
+		int[] oldKeys = keys;
+		long[] oldIdHighs = idHighs;
+		long[] oldIdLows = idLows;
+		long[] oldFingerprints = fingerprints;
+		boolean[] oldUsed = used;
+
+		keys = new int[capacity];
+		idHighs = new long[capacity];
+		idLows = new long[capacity];
+		fingerprints = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+
+		if (oldUsed != null) {
+			for (int i = 0; i < oldUsed.length; i++) {
+				if (oldUsed[i]) {
+					int slot = slotOf(oldKeys[i]);
+					used[slot] = true;
+					keys[slot] = oldKeys[i];
+					idHighs[slot] = oldIdHighs[i];
+					idLows[slot] = oldIdLows[i];
+					fingerprints[slot] = oldFingerprints[i];
+				}
+			}
+		}
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR <= expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int hash(int key) {
+		int hash = key * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static long fingerprint(long hash, String value) {
+		if (value == null) {
+			return (hash ^ 0x1ff) * FNV_PRIME;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+		}
+		return (hash ^ 0x100) * FNV_PRIME;
+	}
+
+	private static UUID parseUuid(String userId) {
+		try {
+			UUID uuid = UUID.fromString(userId);
+			return uuid.toString().equals(userId) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Integer parseId(String databaseId) {
+		try {
+			return databaseId != null ? Integer.valueOf(databaseId) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
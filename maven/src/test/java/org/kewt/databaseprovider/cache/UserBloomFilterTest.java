@@ -0,0 +1,101 @@
+package org.kewt.databaseprovider.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.kewt.databaseprovider.model.DatabaseUser;
+
+public class UserBloomFilterTest {
+
+	@Test
+	public void mightContainEverythingUntilBuilt() {
+		UserBloomFilter filter = new UserBloomFilter();
+		filter.add(user(1, "john", "john@example.com"));
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightContainUsername("jane"));
+		assertTrue(filter.mightContainEmail("jane@example.com"));
+	}
+
+	@Test
+	public void containsRebuiltUsersIgnoringCase() {
+		UserBloomFilter filter = build(1000);
+		assertTrue(filter.isReady());
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContainUsername("USER" + i));
+			assertTrue(filter.mightContainEmail("user" + i + "@Example.com"));
+		}
+		assertEquals(1, filter.getRebuilds());
+		// keys whose bits were all set already are not counted
+		assertTrue(filter.getKeyCount() > 1950 && filter.getKeyCount() <= 2000);
+	}
+
+	@Test
+	public void answersMostUnknownNamesWithoutTheDatabase() {
+		UserBloomFilter filter = build(1000);
+		int positives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContainUsername("someone" + i)) {
+				positives++;
+			}
+		}
+		assertTrue(positives < 300, positives + " false positives");
+		assertEquals(positives, filter.getPositives());
+		assertEquals(10000 - positives, filter.getNegatives());
+	}
+
+	@Test
+	public void keepsUsernamesAndEmailsApart() {
+		UserBloomFilter filter = build(0);
+		filter.add(user(1, "john", null));
+		assertTrue(filter.mightContainUsername("john"));
+		assertFalse(filter.mightContainEmail("john"));
+		assertTrue(filter.mightContainEmail(null));
+	}
+
+	@Test
+	public void keepsUsersAddedWhileRebuilding() {
+		UserBloomFilter filter = build(10);
+		UserBloomFilter.Rebuild rebuild = filter.startRebuild(10);
+		filter.add(user(100, "late", "late@example.com"));
+		assertTrue(filter.mightContainUsername("late"));
+		rebuild.publish();
+		assertTrue(filter.mightContainUsername("late"));
+		assertFalse(filter.mightContainUsername("user1"));
+	}
+
+	@Test
+	public void runsOneRebuildAtATime() {
+		UserBloomFilter filter = new UserBloomFilter();
+		UserBloomFilter.Rebuild rebuild = filter.startRebuild(10);
+		assertNotNull(rebuild);
+		assertNull(filter.startRebuild(10));
+		rebuild.abandon();
+		assertFalse(filter.isReady());
+		assertNotNull(filter.startRebuild(10));
+	}
+
+	// Private Methods
+
+	private static UserBloomFilter build(int users) {
+		UserBloomFilter filter = new UserBloomFilter();
+		UserBloomFilter.Rebuild rebuild = filter.startRebuild(users);
+		for (int i = 0; i < users; i++) {
+			rebuild.add(user(i, "user" + i, "user" + i + "@example.com"));
+		}
+		rebuild.publish();
+		return filter;
+	}
+
+	private static DatabaseUser user(int id, String username, String email) {
+		DatabaseUser user = new DatabaseUser();
+		user.setId(id);
+		user.setUsername(username);
+		user.setEmail(email);
+		return user;
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.kewt.databaseprovider.crypto.encoders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the encoder still produces the hashes stored by the legacy applications: the
+ * lowercase hex digest of salt + password, each further iteration digesting the hex of
+ * the previous one.
+ */
+public class DigestPasswordEncoderTest {
+
+	@Test
+	public void encodesUnsaltedDigests() {
+		assertEquals("5f4dcc3b5aa765d61d8327deb882cf99", new DigestPasswordEncoder("MD5", null, null).encode("password"));
+		assertEquals("5baa61e4c9b93f3f0682250b6cf8331b7ee68fd8", new DigestPasswordEncoder("SHA-1", null, null).encode("password"));
+		assertEquals("5e884898da28047151d0e56f8dc6292773603d0d6aabbdd62a11ef721d1542d8", new DigestPasswordEncoder("SHA-256", null, null).encode("password"));
+		assertEquals("b109f3bbbc244eb82441917ed06d618b9008dd09b3befd1b5e07394c706a8bb980b1d7785e5976ec049b46df5f1326af5a2ea6d103fd07c95385ffab0cacbc86",
+			new DigestPasswordEncoder("SHA-512", null, null).encode("password"));
+	}
+
+	@Test
+	public void prefixesTheFixedSalt() {
+		assertEquals("fb985bc394cf7ec1f46feac5ff63ca9f", new DigestPasswordEncoder("MD5", "pepper", 1).encode("password"));
+	}
+
+	@Test
+	public void digestsUtf8() {
+		assertEquals("ae90ee1cfe6da4ff68a08f8448229d69a4940ce857961e7c125f481bc4480ce9", new DigestPasswordEncoder("SHA-256", "pepper", 1).encode("pässwörd"));
+	}
+
+	@Test
+	public void iteratesOverTheHexOfThePreviousDigest() {
+		assertEquals("5a22e6c339c96c9c0513a46e44c39683", new DigestPasswordEncoder("MD5", null, 3).encode("password"));
+		assertEquals("425ea71166d2138a400192ed37c697fbd5c8a851", new DigestPasswordEncoder("SHA-1", "salt", 1000).encode("secret"));
+	}
+
+	@Test
+	public void matchesStoredHashes() {
+		DigestPasswordEncoder encoder = new DigestPasswordEncoder("SHA-1", "salt", 1000);
+		assertTrue(encoder.matches("secret", "425ea71166d2138a400192ed37c697fbd5c8a851"));
+		assertFalse(encoder.matches("Secret", "425ea71166d2138a400192ed37c697fbd5c8a851"));
+		assertFalse(encoder.matches("secret", "425ea71166d2138a400192ed37c697fbd5c8a85"));
+		assertFalse(encoder.matches("secret", null));
+	}
+
+	@Test
+	public void rejectsUnknownAlgorithms() {
+		assertThrows(IllegalStateException.class, () -> new DigestPasswordEncoder("MD6", null, null));
+	}
+
+	@Test
+	public void encodesConcurrently() throws Exception {
+		DigestPasswordEncoder encoder = new DigestPasswordEncoder("SHA-256", null, 10);
+		String expected = encoder.encode("password");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(() -> {
+					for (int j = 0; j < 1000; j++) {
+						if (!encoder.matches("password", expected) || encoder.matches("passw0rd", expected)) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
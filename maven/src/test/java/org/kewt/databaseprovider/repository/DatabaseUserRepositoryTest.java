@@ -0,0 +1,89 @@
+package org.kewt.databaseprovider.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kewt.databaseprovider.model.DatabaseUser;
+import org.keycloak.component.ComponentModel;
+
+/**
+ * Checks the keyset paging of searches against a table held in memory.
+ */
+public class DatabaseUserRepositoryTest {
+
+	private List<DatabaseUser> table;
+
+	private List<Integer> ids;
+
+	private List<Integer> skips;
+
+	private DatabaseUserRepository repository;
+
+	private SearchQuery search;
+
+	@BeforeEach
+	public void createRepository() {
+		table = new ArrayList<>();
+		for (int i = 1; i <= 1000; i++) {
+			DatabaseUser user = new DatabaseUser();
+			user.setId(i * 2);
+			user.setUsername("user" + i);
+			table.add(user);
+		}
+		ids = table.stream().map(DatabaseUser::getId).collect(Collectors.toList());
+		skips = new ArrayList<>();
+		DatabaseUserQueries queries = new DatabaseUserQueries(new ComponentModel());
+		repository = new DatabaseUserRepository(null, queries) {
+
+			@Override
+			public List<DatabaseUser> searchUsersAfter(SearchQuery search, Integer afterId, int limit) {
+				return table.stream().filter((DatabaseUser user) -> user.getId() > afterId).limit(limit).collect(Collectors.toList());
+			}
+
+			@Override
+			public Integer findUserIdAfter(SearchQuery search, Integer afterId, int skip) {
+				skips.add(skip);
+				return table.stream().filter((DatabaseUser user) -> user.getId() > afterId).skip(skip).map(DatabaseUser::getId).findFirst().orElse(null);
+			}
+
+		};
+		search = queries.getSearchCompiler().compile("*");
+	}
+
+	@Test
+	public void readsRequestedPages() {
+		for (int first : new int[] { 0, 5, 149, 150, 300, 660, 999, 1000, 1200 }) {
+			for (int max : new int[] { 1, 10, 200 }) {
+				assertEquals(ids.subList(Math.min(first, 1000), Math.min(first + max, 1000)), read(new SearchAnchors(60000), first, max, 100), first + ", " + max);
+			}
+		}
+	}
+
+	@Test
+	public void readsEveryUserWithoutLimits() {
+		assertEquals(ids, repository.streamSearchUsers(search, null, null, null, 100).map(DatabaseUser::getId).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void continuesFromAnchors() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		assertEquals(ids.subList(0, 100), read(anchors, 0, 100, 100));
+		assertEquals(ids.subList(100, 200), read(anchors, 100, 100, 100));
+		assertEquals(0, skips.size());
+		assertEquals(ids.subList(250, 260), read(anchors, 250, 10, 100));
+		assertEquals(1, skips.size());
+		assertEquals(Integer.valueOf(49), skips.get(0));
+	}
+
+	// Private Methods
+
+	private List<Integer> read(SearchAnchors anchors, int first, int max, int pageSize) {
+		return repository.streamSearchUsers(search, anchors, first, max, pageSize).map(DatabaseUser::getId).collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,85 @@
+package org.kewt.databaseprovider.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class SearchAnchorsTest {
+
+	@Test
+	public void findsTheClosestPreviousAnchor() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		anchors.put("john", 20, 120);
+		anchors.put("john", 40, 260);
+		assertNull(anchors.floor("john", 10));
+		assertAnchor(20, 120, anchors.floor("john", 20));
+		assertAnchor(20, 120, anchors.floor("john", 39));
+		assertAnchor(40, 260, anchors.floor("john", 1000));
+		assertNull(anchors.floor("jane", 40));
+	}
+
+	@Test
+	public void replacesAnchorsAtTheSameOffset() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		anchors.put("*", 20, 120);
+		anchors.put("*", 20, 125);
+		assertAnchor(20, 125, anchors.floor("*", 20));
+	}
+
+	@Test
+	public void expiresAnchors() throws InterruptedException {
+		SearchAnchors anchors = new SearchAnchors(1);
+		anchors.put("john", 20, 120);
+		Thread.sleep(10);
+		assertNull(anchors.floor("john", 20));
+		anchors.put("john", 40, 260);
+		assertNull(anchors.floor("john", 39));
+		assertAnchor(40, 260, anchors.floor("john", 40));
+	}
+
+	@Test
+	public void dropsTheFirstAnchorsOfLongSearches() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		for (int offset = 1; offset <= 300; offset++) {
+			anchors.put("*", offset, offset * 2);
+		}
+		assertNull(anchors.floor("*", 44));
+		assertAnchor(45, 90, anchors.floor("*", 45));
+		assertAnchor(300, 600, anchors.floor("*", 300));
+	}
+
+	@Test
+	public void forgetsTheLeastRecentlyUsedSearches() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		for (int i = 0; i <= 1000; i++) {
+			anchors.put("search" + i, 20, i);
+			if (i == 500) {
+				anchors.floor("search0", 20);
+			}
+		}
+		assertAnchor(20, 0, anchors.floor("search0", 20));
+		assertNull(anchors.floor("search1", 20));
+		assertAnchor(20, 1000, anchors.floor("search1000", 20));
+	}
+
+	@Test
+	public void clearsEverySearch() {
+		SearchAnchors anchors = new SearchAnchors(60000);
+		anchors.put("john", 20, 120);
+		anchors.put("jane", 20, 140);
+		anchors.clear();
+		assertNull(anchors.floor("john", 20));
+		assertNull(anchors.floor("jane", 20));
+	}
+
+	// Private Methods
+
+	private static void assertAnchor(int offset, int lastId, Map.Entry<Integer, Integer> anchor) {
+		assertEquals(Integer.valueOf(offset), anchor.getKey());
+		assertEquals(Integer.valueOf(lastId), anchor.getValue());
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.kewt.databaseprovider.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kewt.databaseprovider.DBFederationConstants;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.UserModel;
+
+public class SearchQueryCompilerTest {
+
+	private static final String NAME_MATCH = "(username like ? escape '!' or email like ? escape '!' or first_name like ? escape '!' or last_name like ? escape '!')";
+
+	private SearchQueryCompiler compiler;
+
+	@BeforeEach
+	public void createCompiler() {
+		ComponentModel model = new ComponentModel();
+		model.getConfig().putSingle(DBFederationConstants.CONFIG_ATTRIBUTE_COLUMNS, "phone:phone_number");
+		compiler = new DatabaseUserQueries(model).getSearchCompiler();
+	}
+
+	@Test
+	public void matchesPrefixes() {
+		SearchQuery query = compiler.compile(params(UserModel.USERNAME, "john"));
+		assertEquals("username like ? escape '!'", query.getPredicate());
+		assertEquals(Arrays.asList("john%"), query.getParameters());
+	}
+
+	@Test
+	public void matchesExactly() {
+		SearchQuery query = compiler.compile(params(UserModel.USERNAME, " john ", UserModel.EXACT, "true"));
+		assertEquals("username = ?", query.getPredicate());
+		assertEquals(Arrays.asList("john"), query.getParameters());
+	}
+
+	@Test
+	public void translatesWildcards() {
+		assertEquals(Arrays.asList("%smith%"), compiler.compile(params(UserModel.LAST_NAME, "*smith")).getParameters());
+		assertEquals(Arrays.asList("%smith%"), compiler.compile(params(UserModel.LAST_NAME, "*smith*")).getParameters());
+		assertEquals(Arrays.asList("jo%n%"), compiler.compile(params(UserModel.FIRST_NAME, "jo*n")).getParameters());
+	}
+
+	@Test
+	public void escapesLikeCharacters() {
+		assertEquals(Arrays.asList("100!%!_!!%"), compiler.compile(params(UserModel.USERNAME, "100%_!")).getParameters());
+	}
+
+	@Test
+	public void skipsWildcardOnlyValues() {
+		assertNull(compiler.compile(params(UserModel.USERNAME, "*")).getPredicate());
+		assertNull(compiler.compile(params(UserModel.USERNAME, "**")).getPredicate());
+		assertNull(compiler.compile("*").getPredicate());
+		assertNull(compiler.compile("  ").getPredicate());
+		assertNull(compiler.compile((String) null).getPredicate());
+	}
+
+	@Test
+	public void matchesEachSearchTermAgainstNames() {
+		SearchQuery query = compiler.compile("john  doe");
+		assertEquals(NAME_MATCH + " and " + NAME_MATCH, query.getPredicate());
+		assertEquals(Arrays.asList("john%", "john%", "john%", "john%", "doe%", "doe%", "doe%", "doe%"), query.getParameters());
+	}
+
+	@Test
+	public void matchesQuotedSearchesExactly() {
+		SearchQuery query = compiler.compile("\"john doe\"");
+		assertEquals("(username = ? or email = ? or first_name = ? or last_name = ?)", query.getPredicate());
+		assertEquals(Collections.nCopies(4, "john doe"), query.getParameters());
+	}
+
+	@Test
+	public void combinesParameters() {
+		SearchQuery query = compiler.compile(params(UserModel.EMAIL, "john@", "phone", "555", UserModel.INCLUDE_SERVICE_ACCOUNT, "false"));
+		assertEquals("email like ? escape '!' and phone_number like ? escape '!'", query.getPredicate());
+		assertEquals(Arrays.asList("john@%", "555%"), query.getParameters());
+	}
+
+	@Test
+	public void matchesDatabaseIds() {
+		SearchQuery query = compiler.compile(params(DBFederationConstants.ATTRIBUTE_DATABASE_ID, " 42 "));
+		assertEquals("id = ?", query.getPredicate());
+		assertEquals(Arrays.asList(42), query.getParameters());
+		assertNull(compiler.compile(params(DBFederationConstants.ATTRIBUTE_DATABASE_ID, "abc")));
+	}
+
+	@Test
+	public void rejectsUnmappedAttributes() {
+		assertNull(compiler.compile(params("department", "sales")));
+		assertNull(compiler.compileAttribute("department", "sales"));
+	}
+
+	@Test
+	public void compilesAttributeEquality() {
+		SearchQuery query = compiler.compileAttribute("phone", "555*");
+		assertEquals("phone_number = ?", query.getPredicate());
+		assertEquals(Arrays.asList("555*"), query.getParameters());
+		assertEquals(Arrays.asList(7), compiler.compileAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ID, "7").getParameters());
+		assertNull(compiler.compileAttribute(DBFederationConstants.ATTRIBUTE_DATABASE_ID, "x"));
+		assertNull(compiler.compileAttribute(UserModel.USERNAME, null));
+	}
+
+	@Test
+	public void keysEqualSearchesEqually() {
+		assertEquals(compiler.compile("john").getKey(), compiler.compile(" john ").getKey());
+		assertNotEquals(compiler.compile("john").getKey(), compiler.compile("jane").getKey());
+		assertEquals("*", compiler.compile("*").getKey());
+	}
+
+	// Private Methods
+
+	private static Map<String, String> params(String... namesAndValues) {
+		Map<String, String> params = new LinkedHashMap<>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			params.put(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return params;
+	}
+
+}
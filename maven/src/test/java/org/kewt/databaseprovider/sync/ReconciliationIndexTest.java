@@ -0,0 +1,84 @@
+package org.kewt.databaseprovider.sync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.kewt.databaseprovider.model.DatabaseUser;
+
+public class ReconciliationIndexTest {
+
+	@Test
+	public void mapsDatabaseIdsToLocalUsers() {
+		ReconciliationIndex index = new ReconciliationIndex(4);
+		String userId = UUID.randomUUID().toString();
+		index.put(7, userId, 42L);
+		assertEquals(userId, index.getUserId(7));
+		assertEquals(42L, index.getFingerprint(7));
+		assertNull(index.getUserId(8));
+		assertEquals(0L, index.getFingerprint(8));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void keepsIdsThatAreNotCanonicalUuids() {
+		ReconciliationIndex index = new ReconciliationIndex(4);
+		String upperCase = UUID.randomUUID().toString().toUpperCase();
+		index.put(1, "admin", 1L);
+		index.put(2, upperCase, 2L);
+		assertEquals("admin", index.getUserId(1));
+		assertEquals(upperCase, index.getUserId(2));
+		String userId = UUID.randomUUID().toString();
+		index.put(1, userId, 3L);
+		assertEquals(userId, index.getUserId(1));
+		assertEquals(3L, index.getFingerprint(1));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void growsPastTheExpectedSize() {
+		ReconciliationIndex index = new ReconciliationIndex(0);
+		String[] userIds = new String[20000];
+		for (int i = 0; i < userIds.length; i++) {
+			userIds[i] = UUID.randomUUID().toString();
+			index.put(i * 64 - 10000, userIds[i], i);
+		}
+		assertEquals(userIds.length, index.size());
+		for (int i = 0; i < userIds.length; i++) {
+			assertEquals(userIds[i], index.getUserId(i * 64 - 10000));
+			assertEquals(i, index.getFingerprint(i * 64 - 10000));
+		}
+	}
+
+	@Test
+	public void sortsDatabaseIds() {
+		ReconciliationIndex index = new ReconciliationIndex(16);
+		for (int id : new int[] { 30, -5, 1000, 2, 17 }) {
+			index.put(id, UUID.randomUUID().toString(), id);
+		}
+		assertArrayEquals(new int[] { -5, 2, 17, 30, 1000 }, index.sortedDatabaseIds());
+	}
+
+	@Test
+	public void fingerprintsMatchImportedUsers() {
+		DatabaseUser user = new DatabaseUser();
+		user.setUsername("John.Doe");
+		user.setEmail("John@Example.com");
+		user.setFirstName("John");
+		user.setLastName("Doe");
+		assertEquals(ReconciliationIndex.fingerprint("john.doe", "john@example.com", "John", "Doe", true), ReconciliationIndex.fingerprint(user));
+		assertNotEquals(ReconciliationIndex.fingerprint("john.doe", "john@example.com", "John", "Doe", false), ReconciliationIndex.fingerprint(user));
+		assertNotEquals(ReconciliationIndex.fingerprint("john.doe", "john@example.com", "john", "Doe", true), ReconciliationIndex.fingerprint(user));
+	}
+
+	@Test
+	public void fingerprintsTellFieldsApart() {
+		assertNotEquals(ReconciliationIndex.fingerprint("ab", "c", null, null, true), ReconciliationIndex.fingerprint("a", "bc", null, null, true));
+		assertNotEquals(ReconciliationIndex.fingerprint("a", null, "", null, true), ReconciliationIndex.fingerprint("a", "", null, null, true));
+	}
+
+}